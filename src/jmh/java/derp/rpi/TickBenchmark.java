@@ -0,0 +1,58 @@
+package derp.rpi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.google.common.collect.ImmutableList;
+
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.NixieControl;
+import derp.rpi.hardware.SimulatedGpioBackend;
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+
+// single displayLoop iteration without the sleep, cycling through three notifies
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TickBenchmark {
+
+    @Param({"CYCLE", "PARALLEL"})
+    public NixieNotify.Layout layout;
+
+    private NixieNotify nixieNotify;
+
+    private NixieControl control;
+
+    @Setup
+    public void setUp() {
+        final NixieNotify.Config config = new NixieNotify.Config();
+        config.layout = layout;
+        config.snapshotFile = ""; // never touch persisted snapshot
+        nixieNotify = new NixieNotify(config);
+
+        final UpdateEngine updates = nixieNotify.getUpdateEngine();
+        updates.setEnabled(true);
+        updates.addPushSource("benchmark").publish(ImmutableList.of(
+                new Notify("a", Frame.of(Color.RED, Digit.D1, false, false)),
+                new Notify("b", Frame.of(Color.BLUE, Digit.D2, false, false)),
+                new Notify("c", Frame.of(Color.GREEN, Digit.D3, true, false))));
+
+        control = new NixieControl(new SimulatedGpioBackend(2), 2, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        control.close();
+        nixieNotify.getUpdateEngine().close();
+    }
+
+    @Benchmark
+    public int tick() {
+        return nixieNotify.tick(control);
+    }
+}
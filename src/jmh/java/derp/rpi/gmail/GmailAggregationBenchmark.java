@@ -0,0 +1,126 @@
+package derp.rpi.gmail;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.common.collect.TreeMultiset;
+
+import derp.rpi.Notify;
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.StateBuilder.Color;
+
+// label aggregation part of GmailNotifier.query(), network is left out.
+// singleChange against treeMultisetRebuild is the per-poll cost of counters against rebuilding counts like before them
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GmailAggregationBenchmark {
+
+    private static final String[] LABELS = { "CATEGORY_PERSONAL", "CATEGORY_SOCIAL", "CATEGORY_UPDATES", "CATEGORY_PROMOTIONS", "IMPORTANT" };
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int unread;
+
+    private GmailNotifier.Config config;
+
+    private Message[] messages;
+
+    private GmailNotifier notifier;
+
+    private final Message[] toggled = new Message[2];
+    private int counter;
+
+    // same mailbox the way it was kept before counters: unread ids and a label list per cached message
+    private Set<String> unreadIds;
+    private Map<String, List<String>> cachedLabels;
+
+    @Setup
+    public void setUp() {
+        config = new GmailNotifier.Config();
+        config.cacheFile = "";
+        config.maxCachedMessages = unread * 2;
+
+        messages = new Message[unread];
+        for (int i = 0; i < unread; i++)
+            messages[i] = message("m" + i, LABELS[i % LABELS.length]);
+
+        notifier = load();
+
+        toggled[0] = message("m0", LABELS[0]);
+        toggled[1] = message("m0", LABELS[1]);
+
+        unreadIds = Sets.newHashSet();
+        cachedLabels = Maps.newHashMap();
+        for (Message message : messages) {
+            unreadIds.add(message.getId());
+            cachedLabels.put(message.getId(), message.getLabelIds());
+        }
+    }
+
+    private static Message message(String id, String label) {
+        return new Message().setId(id).setLabelIds(Arrays.asList("UNREAD", "INBOX", label));
+    }
+
+    private GmailNotifier load() {
+        final GmailNotifier notifier = new GmailNotifier(config, null, null);
+        for (Message message : messages)
+            notifier.updateMessage(message);
+        return notifier;
+    }
+
+    // cold start, every message goes through cache and counters
+    @Benchmark
+    public List<Notify> fullSync() {
+        return load().aggregate();
+    }
+
+    // steady state, one message moved between labels since last poll
+    @Benchmark
+    public List<Notify> singleChange() {
+        notifier.updateMessage(toggled[counter++ & 1]);
+        return notifier.aggregate();
+    }
+
+    // baseline for singleChange, same change but counts are rebuilt from every unread message
+    @Benchmark
+    public List<Notify> treeMultisetRebuild() {
+        final Message changed = toggled[counter++ & 1];
+        cachedLabels.put(changed.getId(), changed.getLabelIds());
+
+        final Multiset<String> labels = TreeMultiset.create();
+        for (String id : unreadIds) {
+            final List<String> messageLabels = cachedLabels.get(id);
+            if (messageLabels != null)
+                labels.addAll(messageLabels);
+        }
+
+        labels.retainAll(config.labelColors.keySet());
+
+        final List<Notify> notifies = Lists.newArrayList();
+        for (Multiset.Entry<String> e : labels.entrySet()) {
+            final Color color = config.labelColors.getOrDefault(e.getElement(), Color.WHITE);
+            notifies.add(new Notify("gmail:" + e.getElement(), GmailNotifier.createNotifyPayload(color, e.getCount())));
+        }
+        return notifies;
+    }
+
+    @Benchmark
+    public List<Notify> noChange() {
+        return notifier.aggregate();
+    }
+
+    @Benchmark
+    public Frame createNotifyPayload() {
+        return GmailNotifier.createNotifyPayload(Color.GREEN, counter++ % (unread + 1));
+    }
+}
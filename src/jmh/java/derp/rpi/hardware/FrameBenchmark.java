@@ -0,0 +1,49 @@
+package derp.rpi.hardware;
+
+import java.util.BitSet;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+    private static final Color[] COLORS = Color.values(); // values() copies array on every call
+
+    private final StateBuilder builder = new StateBuilder();
+
+    private int counter;
+
+    @Benchmark
+    public BitSet bakeBits() {
+        final int i = counter++;
+        return builder.setColor(COLORS[i & 7])
+                .setDigit(Optional.of(Digit.of(i % 10)))
+                .setUpperDot((i & 1) != 0)
+                .bakeBits();
+    }
+
+    @Benchmark
+    public Frame bake() {
+        final int i = counter++;
+        return builder.setColor(COLORS[i & 7])
+                .setDigit(Optional.of(Digit.of(i % 10)))
+                .setUpperDot((i & 1) != 0)
+                .bake();
+    }
+
+    @Benchmark
+    public Frame of() {
+        final int i = counter++;
+        return Frame.of(COLORS[i & 7], Digit.of(i % 10), (i & 1) != 0, false);
+    }
+}
@@ -0,0 +1,61 @@
+package derp.rpi.hardware;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+
+// pin writes go to simulated shift registers, so this measures control overhead only
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NixieControlBenchmark {
+
+    @Param({"1", "4"})
+    public int tubes;
+
+    private NixieControl control;
+
+    private final Frame[] frames = {
+            Frame.of(Color.RED, Digit.D1, false, false),
+            Frame.of(Color.BLUE, Digit.D7, true, false)
+    };
+
+    private Frame[] chain;
+
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        control = new NixieControl(new SimulatedGpioBackend(tubes), tubes, 0);
+        chain = new Frame[tubes];
+    }
+
+    @TearDown
+    public void tearDown() {
+        control.close();
+    }
+
+    @Benchmark
+    public void updateTubeChanged() {
+        control.updateTube(frames[counter++ & 1]);
+    }
+
+    @Benchmark
+    public void updateTubeUnchanged() {
+        control.updateTube(frames[0]);
+    }
+
+    @Benchmark
+    public void updateTubesChanged() {
+        final int i = counter++;
+        for (int tube = 0; tube < chain.length; tube++)
+            chain[tube] = frames[(i + tube) & 1];
+        control.updateTubes(chain);
+    }
+}
@@ -0,0 +1,31 @@
+package derp.rpi;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Time source of the display loop, replaced by VirtualClock in simulations
+public interface Clock {
+
+    public long nanoTime();
+
+    public long currentTimeMillis();
+
+    // may return early, callers re-check their deadline
+    public void parkNanos(Object blocker, long nanos);
+
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void parkNanos(Object blocker, long nanos) {
+            LockSupport.parkNanos(blocker, nanos);
+        }
+    };
+}
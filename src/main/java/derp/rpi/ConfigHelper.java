@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
@@ -16,10 +17,23 @@ public class ConfigHelper {
 
     private static final Logger logger = LoggerFactory.getLogger(ConfigHelper.class);
 
+    public File getConfigFile() {
+        return new File(System.getProperty("user.home"), ".nixie_notify.json");
+    }
+
+    // relative paths are taken from home, null for empty path
+    public static File resolveHomeFile(String path) {
+        if (Strings.isNullOrEmpty(path))
+            return null;
+
+        final File file = new File(path);
+        return file.isAbsolute() ? file : new File(System.getProperty("user.home"), path);
+    }
+
     public MainConfig readConfig() {
         final MainConfig config;
 
-        final File configFile = new File(System.getProperty("user.home"), ".nixie_notify.json");
+        final File configFile = getConfigFile();
 
         if (configFile.exists()) {
             try {
@@ -49,6 +63,11 @@ public class ConfigHelper {
         }
     }
 
+    // null for blank content
+    public MainConfig parseConfig(String content) {
+        return gson.fromJson(content, MainConfig.class);
+    }
+
     private void writeConfig(File configFile, MainConfig config) throws IOException {
         try (final OutputStream output = new FileOutputStream(configFile);
                 final Writer writer = new OutputStreamWriter(output, Charsets.UTF_8)) {
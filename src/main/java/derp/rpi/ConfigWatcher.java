@@ -0,0 +1,137 @@
+package derp.rpi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.gson.JsonParseException;
+
+// Re-reads config file whenever it changes on disk. Edits that don't parse or get rejected are logged and ignored
+public class ConfigWatcher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigWatcher.class);
+
+    private static final int SETTLE_DELAY = 100; // editors save in several steps (truncate, write, rename)
+
+    public interface Listener {
+        // throws when config can't be applied, previous one stays in effect
+        public void onReload(MainConfig config);
+    }
+
+    private final ConfigHelper helper;
+    private final Path configFile;
+    private final Listener listener;
+
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private String lastContent;
+
+    public ConfigWatcher(ConfigHelper helper, Listener listener) throws IOException {
+        this.helper = helper;
+        this.listener = listener;
+
+        final File file = helper.getConfigFile().getAbsoluteFile();
+        this.configFile = file.toPath();
+        this.lastContent = read();
+
+        // directory is watched, so files replaced by rename are still seen
+        this.watchService = FileSystems.getDefault().newWatchService();
+        configFile.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        this.thread = new Thread(this::run, "config-watcher");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+        logger.info("Watching {} for changes", configFile);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!isConfigEvent(watchService.take()))
+                    continue;
+
+                // wait until writes stop, then read once
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE_DELAY, TimeUnit.MILLISECONDS)) != null)
+                    isConfigEvent(key);
+
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Config watcher stopped");
+        }
+    }
+
+    private boolean isConfigEvent(WatchKey key) {
+        boolean result = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            final Object context = event.context();
+            // overflow has no context, changes may have been lost
+            if (context == null || configFile.getFileName().equals(context))
+                result = true;
+        }
+
+        key.reset();
+        return result;
+    }
+
+    private String read() throws IOException {
+        return new String(Files.readAllBytes(configFile), Charsets.UTF_8);
+    }
+
+    private void reload() {
+        final String content;
+        try {
+            content = read();
+        } catch (NoSuchFileException e) {
+            return; // moved away, wait for it to come back
+        } catch (IOException e) {
+            logger.warn("Failed to read config from {}", configFile, e);
+            return;
+        }
+
+        if (content.equals(lastContent))
+            return;
+
+        final MainConfig config;
+        try {
+            config = helper.parseConfig(content);
+        } catch (JsonParseException e) {
+            logger.warn("Ignoring changed config {}: {}", configFile, e.getMessage());
+            return;
+        }
+
+        if (config == null) {
+            logger.warn("Ignoring empty config {}", configFile);
+            return;
+        }
+
+        try {
+            final long start = System.nanoTime();
+            listener.onReload(config);
+            lastContent = content;
+            logger.info("Reloaded config from {} in {} ms", configFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (RuntimeException e) {
+            logger.warn("Rejected changed config {}", configFile, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close config watcher", e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package derp.rpi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import derp.rpi.metrics.LatencyHistogram;
+import derp.rpi.metrics.Metrics;
+
+// Sleeps to absolute deadlines, so time spent executing a state is not added to its delay
+public class DisplayScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(DisplayScheduler.class);
+
+    private static final long REPORT_PERIOD = TimeUnit.HOURS.toNanos(1);
+
+    private final LatencyHistogram lateness = new LatencyHistogram();
+
+    private final Clock clock;
+
+    private volatile Thread waiter;
+    private volatile boolean pending;
+
+    private long deadline;
+    private long delay; // of tick being waited for, 0 when next one is due right away
+
+    private long lastReport;
+
+    public DisplayScheduler() {
+        this(Clock.SYSTEM);
+    }
+
+    public DisplayScheduler(Clock clock) {
+        this.clock = clock;
+        this.deadline = clock.nanoTime();
+        this.lastReport = deadline;
+        Metrics.register("display.lateness", lateness);
+    }
+
+    public void reset() {
+        deadline = clock.nanoTime();
+        delay = 0;
+    }
+
+    // next tick is due delayMillis after previous one, right away when not positive
+    void schedule(int delayMillis) {
+        if (delayMillis <= 0)
+            return;
+
+        delay = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        deadline += delay;
+    }
+
+    // returns false when waiting thread was interrupted
+    public boolean sleep(int delayMillis) {
+        schedule(delayMillis);
+
+        waiter = Thread.currentThread();
+
+        long now;
+        while (!isDue(now = clock.nanoTime())) {
+            clock.parkNanos(this, deadline - now);
+
+            if (Thread.interrupted())
+                return false;
+        }
+
+        return true;
+    }
+
+    // For simulations: waits for scheduled tick, but gives up once clock reaches limit and keeps the tick scheduled.
+    // Wake between calls then cuts it short, like an edge arriving while display sleeps. Returns whether tick is due
+    boolean sleepUntil(long limit) {
+        long now;
+        while (!isDue(now = clock.nanoTime())) {
+            if (now - limit >= 0)
+                return false;
+
+            clock.parkNanos(this, Math.min(deadline - now, limit - now));
+        }
+
+        return true;
+    }
+
+    private boolean isDue(long now) {
+        if (delay == 0) {
+            pending = false; // tick that runs now sees whatever woke it
+            return true;
+        }
+
+        if (now - deadline >= 0) { // difference, nanoTime may wrap
+            final long late = now - deadline;
+            lateness.record(late);
+
+            if (late > delay) {
+                // missed whole period (suspend, long GC), don't try to catch up
+                deadline = now;
+            }
+
+            if (now - lastReport > REPORT_PERIOD) {
+                lastReport = now;
+                logger.info("Tick lateness: {}", lateness);
+            }
+
+            delay = 0;
+            return true;
+        }
+
+        if (pending) {
+            // woken early, following delays count from now
+            pending = false;
+            deadline = now;
+            delay = 0;
+            return true;
+        }
+
+        return false;
+    }
+
+    public void wake() {
+        pending = true;
+        LockSupport.unpark(waiter);
+    }
+
+    public LatencyHistogram getLateness() {
+        return lateness;
+    }
+}
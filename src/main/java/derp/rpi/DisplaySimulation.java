@@ -0,0 +1,115 @@
+package derp.rpi;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.FrameTrace;
+import derp.rpi.hardware.NixieControl;
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+import derp.rpi.hardware.TimelineGpioBackend;
+
+// Runs display state machine on virtual time against a recording backend, so hours of device behaviour take milliseconds.
+// Notifies are published directly, store sweeps expired ones as virtual time reaches them
+public class DisplaySimulation implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DisplaySimulation.class);
+
+    private final VirtualClock clock;
+    private final NixieNotify nixieNotify;
+    private final TimelineGpioBackend backend;
+    private final NixieControl control;
+    private final UpdateEngine.Publisher publisher;
+
+    // switch starts on, nothing runs until runFor
+    public DisplaySimulation(NixieNotify.Config config, int tubes) {
+        config.snapshotFile = ""; // never touch persisted snapshot
+
+        this.clock = new VirtualClock(System.currentTimeMillis());
+        this.nixieNotify = new NixieNotify(config, clock);
+        this.publisher = nixieNotify.getUpdateEngine().addPushSource("simulation");
+
+        final NixieControl.Config controlConfig = new NixieControl.Config();
+        controlConfig.tubes = tubes;
+        controlConfig.switchDebounce = 0;
+        this.backend = new TimelineGpioBackend(tubes, clock::nanoTime);
+        this.control = new NixieControl(backend, controlConfig);
+
+        nixieNotify.startLoop(control);
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    public TimelineGpioBackend getTimeline() {
+        return backend;
+    }
+
+    // trace should run on getClock() too, caller closes it
+    public void setTrace(FrameTrace trace) {
+        nixieNotify.setTrace(control, trace);
+    }
+
+    public void runFor(long millis) {
+        final UpdateEngine updates = nixieNotify.getUpdateEngine();
+        final long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        // engine's own sweep is timed in real time, so it is run from here at each expiry instead
+        while (true) {
+            final long expiresAt = updates.getNextExpiry();
+            final long expiry = expiresAt == Notify.NEVER ? deadline
+                    : clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, expiresAt - clock.currentTimeMillis()));
+
+            if (expiry - deadline >= 0) {
+                nixieNotify.runUntil(control, deadline);
+                return;
+            }
+
+            nixieNotify.runUntil(control, expiry);
+            updates.expire();
+        }
+    }
+
+    public void setSwitch(boolean on) {
+        backend.setToggle(!on); // active LOW
+    }
+
+    // replaces everything published before
+    public void publish(List<Notify> notifies) {
+        publisher.publish(notifies);
+    }
+
+    @Override
+    public void close() {
+        control.close();
+        nixieNotify.getUpdateEngine().close();
+    }
+
+    // a day of cycling three notifies with an evening switched off, as a smoke run
+    public static void main(String[] args) {
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        try (final DisplaySimulation simulation = new DisplaySimulation(new NixieNotify.Config(), 1)) {
+            simulation.publish(ImmutableList.of(
+                    new Notify("a", Frame.of(Color.RED, Digit.D1, false, false)),
+                    new Notify("b", Frame.of(Color.BLUE, Digit.D2, false, false)),
+                    new Notify("c", Frame.of(Color.GREEN, Digit.D3, true, false))));
+
+            simulation.runFor(TimeUnit.HOURS.toMillis(18));
+            simulation.setSwitch(false);
+            simulation.runFor(TimeUnit.HOURS.toMillis(5));
+            simulation.setSwitch(true);
+            simulation.runFor(TimeUnit.HOURS.toMillis(1));
+
+            logger.info("Simulated {} h in {}, {} events recorded", TimeUnit.MILLISECONDS.toHours(simulation.getClock().elapsedMillis()),
+                    stopwatch, simulation.getTimeline().getEvents().size());
+        }
+    }
+}
@@ -2,9 +2,13 @@ package derp.rpi;
 
 import derp.rpi.gmail.GmailNotifier;
 import derp.rpi.hardware.NixieControl;
+import derp.rpi.metrics.Metrics;
+import derp.rpi.push.PushListener;
 
 public class MainConfig {
     public NixieControl.Config nixieModule = new NixieControl.Config();
     public GmailNotifier.Config gmail = new GmailNotifier.Config();
     public NixieNotify.Config display = new NixieNotify.Config();
+    public PushListener.Config push = new PushListener.Config();
+    public Metrics.Config metrics = new Metrics.Config();
 }
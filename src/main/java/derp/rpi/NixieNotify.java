@@ -1,19 +1,29 @@
 package derp.rpi;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
+import com.google.common.base.Preconditions;
 import derp.rpi.gmail.GmailNotifier;
+import derp.rpi.gmail.GmailSource;
+import derp.rpi.hardware.Animation;
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.FrameTrace;
 import derp.rpi.hardware.NixieControl;
 import derp.rpi.hardware.StateBuilder;
 import derp.rpi.hardware.StateBuilder.Color;
 import derp.rpi.hardware.StateBuilder.Digit;
-import java.util.BitSet;
-import java.util.Iterator;
+import derp.rpi.metrics.Counter;
+import derp.rpi.metrics.Metrics;
+import derp.rpi.push.PushListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Scanner;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
@@ -21,7 +31,14 @@ import org.slf4j.LoggerFactory;
 
 public class NixieNotify {
 
+    public enum Layout {
+        CYCLE, // one notify at a time, shown on every tube
+        PARALLEL // one notify per tube
+    }
+
     public static class Config {
+        public Layout layout = Layout.CYCLE;
+
         public Color startupFlashColor = Color.GREEN;
         public Color shutdownFlashColor = Color.RED;
         public Color heartbeatFlashColor = Color.CYAN;
@@ -29,231 +46,540 @@ public class NixieNotify {
         public boolean enableHeartbeat = true;
 
         public int cyclePeriod = 1 * 1000;
-        public int updatePeriod = 10 * 1000;
+        public int updatePeriod = 10 * 1000; // default for sources without own period
+        public int updateTimeout = 60 * 1000;
+        public int updateThreads = 2;
+        public PollSchedule.Config polling = new PollSchedule.Config(); // adapts poll period of every source
+        public int preemptPriority = Notify.PRIORITY_HIGH; // interrupts running cycle when a notify at least this urgent shows up
         public int stateIndicationDuration = 500;
         public int heartbeatDuration = 500;
+        public int fadeDuration = 150; // of startup, heartbeat and shutdown flashes
+        public int animationStep = 20;
         public int heartbeatPeriod = 5 * 60; // in multiples of CYCLE_PERIOD
         public int cleanupCycles = 5;
         public int digitCleanupDuration = 100;
+
+        public String snapshotFile = ".nixie_notify.snapshot"; // relative to home, empty to disable
+        public boolean warmStart = true; // first switch-on after start shows restored notifies straight away, cleanup waits for next one
+
+        public String traceFile = ""; // relative to home, records every tube call for TraceReplay, empty to disable
+        public int traceRecords = 1 << 16; // ring size, 16 bytes each
     }
 
-    private final BitSet helloTube;
-    private final BitSet stillAliveTube;
-    private final List<BitSet> cleanUpTube;
-    private final BitSet byeTube;
+    private static final List<Frame> CLEANUP_TUBE = Stream.of(Digit.values())
+            .map(d -> Frame.of(Color.MAGENTA, d, false, false)).collect(Collectors.toList());
+
+    // everything derived from config, rebuilt off the display thread when config file changes
+    private static class Settings {
+        private final Animation helloAnimation;
+        private final Animation stillAliveAnimation;
+        private final Animation byeAnimation;
+
+        private final Layout layout;
+
+        private final boolean heartbeatEnabled;
+
+        private final int cyclePeriod;
+        private final int updatePeriod;
+        private final int updateTimeout;
+        private final int preemptPriority;
+        private final int heartbeatPeriod;
+        private final int cleanupCycles;
+        private final int digitCleanupDuration;
+
+        private final int brightness; // of nixie module, UNCHANGED keeps what control was opened with
+
+        private Settings(Config config, int brightness) {
+            final Frame helloTube = Frame.of(config.startupFlashColor, false, false);
+            final Frame stillAliveTube = Frame.of(config.heartbeatFlashColor, false, false);
+            final Frame byeTube = Frame.of(config.shutdownFlashColor, false, false);
+
+            this.cleanupCycles = config.cleanupCycles * CLEANUP_TUBE.size();
+            this.digitCleanupDuration = config.digitCleanupDuration;
+            this.heartbeatEnabled = config.enableHeartbeat;
+            this.layout = config.layout;
+
+            this.cyclePeriod = config.cyclePeriod;
+            this.heartbeatPeriod = config.heartbeatPeriod;
+
+            // startup ends on first cleanup digit, hello crossfades from there
+            final int fade = config.fadeDuration;
+            final int blinkDuration = config.stateIndicationDuration;
+            final Animation.Builder hello = Animation.builder(config.animationStep)
+                    .crossfade(CLEANUP_TUBE.get(0), helloTube, 2 * fade);
+            if (blinkDuration > 3 * fade)
+                hello.hold(helloTube, 1, blinkDuration - 3 * fade);
+            this.helloAnimation = hello.fade(helloTube, 1, 0, fade).build();
+            this.stillAliveAnimation = Animation.builder(config.animationStep).pulse(stillAliveTube, fade, config.heartbeatDuration).build();
+            this.byeAnimation = Animation.builder(config.animationStep).pulse(byeTube, fade, blinkDuration).build();
+            this.updatePeriod = config.updatePeriod;
+            this.updateTimeout = config.updateTimeout;
+            Preconditions.checkArgument(updatePeriod > 0, "Invalid update period: %s", updatePeriod);
+            Preconditions.checkArgument(updateTimeout > 0, "Invalid update timeout: %s", updateTimeout);
+            this.preemptPriority = config.preemptPriority;
+
+            this.brightness = brightness;
+        }
 
-    private final boolean heartbeatEnabled;
+        private int pollPeriod(GmailNotifier.Config gmailConfig) {
+            return gmailConfig.pollPeriod > 0 ? gmailConfig.pollPeriod : updatePeriod;
+        }
 
-    private final int cyclePeriod;
-    private final int updatePeriod;
-    private final int blinkDuration;
-    private final int heartbeatDuration;
-    private final int heartbeatPeriod;
-    private final int cleanupCycles;
-    private final int digitCleanupDuration;
+        private int pollTimeout(GmailNotifier.Config gmailConfig) {
+            return gmailConfig.pollTimeout > 0 ? gmailConfig.pollTimeout : updateTimeout;
+        }
+    }
 
     private static final int IMMEDIATE = 0;
+    private static final int UNCHANGED = -1;
+
+    private static final boolean EXIT_AFTER_STARTUP = Boolean.getBoolean("nixie.exitAfterStartup"); // CDS training run, see cdsArchive task
 
     private static final Logger logger = LoggerFactory.getLogger(NixieNotify.class);
 
-    private final AtomicBoolean updatesEnabled = new AtomicBoolean(false);
-    private final List<Notify> notifies = Lists.newCopyOnWriteArrayList();
+    private Frame[] tubeFrames;
 
-    public NixieNotify(Config config) {
-        this.helloTube = new StateBuilder().setColor(config.startupFlashColor).bakeBits();
-        this.stillAliveTube = new StateBuilder().setColor(config.heartbeatFlashColor).bakeBits();
-        this.byeTube = new StateBuilder().setColor(config.shutdownFlashColor).bakeBits();
-
-        this.cleanUpTube = Stream.of(Digit.values()).map(d -> new StateBuilder().setDigit(Optional.of(d)).setColor(Color.MAGENTA).bakeBits()).collect(Collectors.toList());
-        this.cleanupCycles = config.cleanupCycles * cleanUpTube.size();
-        this.digitCleanupDuration = config.digitCleanupDuration;
-        this.heartbeatEnabled = config.enableHeartbeat;
-
-        this.blinkDuration = config.stateIndicationDuration;
-        this.cyclePeriod = config.cyclePeriod;
-        this.heartbeatPeriod = config.heartbeatPeriod;
-        this.heartbeatDuration = config.heartbeatDuration;
-        this.updatePeriod = config.updatePeriod;
+    private Frame[] tubeFrames(NixieControl control) {
+        if (tubeFrames == null || tubeFrames.length != control.getTubeCount())
+            tubeFrames = new Frame[control.getTubeCount()];
+        return tubeFrames;
     }
 
-    public static class StateResult {
-        public final State nextState;
-        public final int delay;
+    private final Clock clock;
 
-        public StateResult(State nextState, int delay) {
-            this.nextState = nextState;
-            this.delay = delay;
-        }
+    private final DisplayScheduler scheduler;
+
+    private final UpdateEngine updates;
+
+    // set by background startup
+    private volatile PushListener pushListener;
+    private volatile Map<String, GmailSource> gmail = Collections.emptyMap(); // by source name
+
+    private boolean warmStart;
+
+    private final File traceFile;
+    private final int traceRecords;
+    private FrameTrace trace; // null unless tracing
+
+    // written by config reload, picked up by display thread at start of next tick
+    private volatile Settings latestSettings;
+    private Settings settings;
+
+    public NixieNotify(Config config) {
+        this(config, Clock.SYSTEM);
+    }
+
+    public NixieNotify(Config config, Clock clock) {
+        this.clock = clock;
+        this.scheduler = new DisplayScheduler(clock);
+        this.settings = new Settings(config, UNCHANGED);
+        this.latestSettings = settings;
+        this.warmStart = config.warmStart;
+        this.traceFile = ConfigHelper.resolveHomeFile(config.traceFile);
+        this.traceRecords = config.traceRecords;
+
+        this.updates = new UpdateEngine(config.updateThreads, clock, (previous, current) -> {
+            if (previous.isEmpty() ? !current.isEmpty() : preempts(current, previous.get(0).priority, latestSettings))
+                scheduler.wake();
+        });
+        updates.setPolling(config.polling);
+
+        for (State s : states)
+            transitions.put(s, Metrics.counter("display.transitions." + s.getClass().getSimpleName()));
+
+        final File snapshotFile = ConfigHelper.resolveHomeFile(config.snapshotFile);
+        if (snapshotFile != null)
+            updates.restore(new SnapshotFile(snapshotFile));
     }
 
     public interface State {
-        public StateResult execute(NixieControl control);
+        // resets per-visit counters, states are reused across transitions
+        public default void enter() {}
+
+        // returns delay before next tick
+        public int execute(NixieControl control);
+    }
+
+    private final StateIdle stateIdle = new StateIdle();
+    private final StateStartup stateStartup = new StateStartup();
+    private final StateHeartbeat stateHeartbeat = new StateHeartbeat();
+    private final StateWaitForUpdates stateWaitForUpdates = new StateWaitForUpdates();
+    private final StateDisplay stateDisplay = new StateDisplay();
+    private final StateOff stateOff = new StateOff();
+    private final StateAnimation stateAnimation = new StateAnimation();
+
+    // index is state id in traces
+    private final List<State> states = Arrays.asList(stateIdle, stateStartup, stateHeartbeat, stateWaitForUpdates, stateDisplay, stateOff, stateAnimation);
+
+    private State state = stateIdle;
+
+    private final Map<State, Counter> transitions = new IdentityHashMap<>();
+
+    private int transition(State next, int delay) {
+        transitions.get(next).inc();
+        next.enter();
+        state = next;
+        if (trace != null)
+            trace.setState(states.indexOf(next));
+        return delay;
     }
 
     public class StateIdle implements State {
         @Override
-        public StateResult execute(NixieControl control) {
+        public int execute(NixieControl control) {
             if (control.isSwitchOn()) {
-                updatesEnabled.set(true);
-                return new StateResult(new StateStartup(), IMMEDIATE);
+                updates.setEnabled(true);
+
+                final boolean restored = warmStart && !updates.getSnapshot().isEmpty();
+                warmStart = false;
+                return transition(restored ? stateDisplay : stateStartup, IMMEDIATE);
             }
 
             control.setTubeState(false);
-            return new StateResult(this, cyclePeriod);
+            return settings.cyclePeriod;
         }
     }
 
     public class StateStartup implements State {
-        private int startupCountdown = cleanupCycles;
+        private int startupCountdown;
 
         @Override
-        public StateResult execute(NixieControl control) {
-            if (startupCountdown-- <= 0) {
-                control.updateTube(helloTube);
-                control.setTubeState(true);
-                return new StateResult(new StateWaitForUpdates(), blinkDuration);
-            }
+        public void enter() {
+            startupCountdown = settings.cleanupCycles;
+        }
+
+        @Override
+        public int execute(NixieControl control) {
+            if (startupCountdown-- <= 0)
+                return play(settings.helloAnimation, stateWaitForUpdates);
 
-            control.updateTube(cleanUpTube.get(startupCountdown % cleanUpTube.size()));
+            control.updateTube(CLEANUP_TUBE.get(startupCountdown % CLEANUP_TUBE.size()));
             control.setTubeState(true);
-            return new StateResult(this, digitCleanupDuration);
+            return settings.digitCleanupDuration;
         }
     }
 
     public class StateHeartbeat implements State {
         @Override
-        public StateResult execute(NixieControl control) {
+        public int execute(NixieControl control) {
             if (!control.isSwitchOn())
-                return new StateResult(new StateOff(), IMMEDIATE);
+                return transition(stateOff, IMMEDIATE);
 
-            control.updateTube(stillAliveTube);
-            control.setTubeState(true);
-            return new StateResult(new StateWaitForUpdates(), heartbeatDuration);
+            return play(settings.stillAliveAnimation, stateWaitForUpdates);
         }
     }
 
     public class StateWaitForUpdates implements State {
-        private int heartbeatCountdown = heartbeatPeriod;
+        private int heartbeatCountdown;
 
         @Override
-        public StateResult execute(NixieControl control) {
-            if (!control.isSwitchOn())
-                return new StateResult(new StateOff(), IMMEDIATE);
+        public void enter() {
+            heartbeatCountdown = settings.heartbeatPeriod;
+        }
 
-            final Iterator<Notify> it = notifies.iterator();
+        @Override
+        public int execute(NixieControl control) {
+            if (!control.isSwitchOn())
+                return transition(stateOff, IMMEDIATE);
 
-            if (it.hasNext())
-                return new StateResult(new StateDisplay(it), IMMEDIATE);
+            if (!updates.getSnapshot().isEmpty())
+                return transition(stateDisplay, IMMEDIATE);
 
-            if (heartbeatEnabled && heartbeatCountdown-- <= 0) {
-                return new StateResult(new StateHeartbeat(), IMMEDIATE);
+            if (settings.heartbeatEnabled && heartbeatCountdown-- <= 0) {
+                return transition(stateHeartbeat, IMMEDIATE);
             } else {
                 control.setTubeState(false);
-                return new StateResult(this, cyclePeriod);
+                return settings.cyclePeriod;
             }
         }
 
     }
 
+    // snapshots are in priority order, so head decides
+    private static boolean preempts(List<Notify> notifies, int shownPriority, Settings settings) {
+        if (notifies.isEmpty())
+            return false;
+
+        final int top = notifies.get(0).priority;
+        return top >= settings.preemptPriority && top > shownPriority;
+    }
+
     public class StateDisplay implements State {
-        private final Iterator<Notify> it;
+        private List<Notify> snapshot;
+        private int index;
+        private int shownPriority;
+
+        @Override
+        public void enter() {
+            snapshot = updates.getSnapshot();
+            index = 0;
+            shownPriority = Integer.MIN_VALUE;
+        }
+
+        private Frame next(long now) {
+            while (index < snapshot.size()) {
+                final Notify notify = snapshot.get(index++);
+                if (!notify.isExpired(now)) {
+                    shownPriority = Math.max(shownPriority, notify.priority);
+                    return notify.payload;
+                }
+            }
 
-        public StateDisplay(Iterator<Notify> it) {
-            this.it = it;
+            return Frame.BLANK;
         }
 
         @Override
-        public StateResult execute(NixieControl control) {
+        public int execute(NixieControl control) {
             if (!control.isSwitchOn())
-                return new StateResult(new StateOff(), IMMEDIATE);
+                return transition(stateOff, IMMEDIATE);
+
+            final List<Notify> latest = updates.getSnapshot();
+            if (latest != snapshot && preempts(latest, shownPriority, settings))
+                enter();
 
-            if (!it.hasNext())
-                return new StateResult(new StateWaitForUpdates(), IMMEDIATE);
+            if (index >= snapshot.size())
+                return transition(stateWaitForUpdates, IMMEDIATE);
+
+            final long now = clock.currentTimeMillis();
+            if (settings.layout == Layout.PARALLEL) {
+                final Frame[] frames = tubeFrames(control);
+                for (int tube = 0; tube < frames.length; tube++)
+                    frames[tube] = next(now);
+                control.updateTubes(frames);
+            } else {
+                control.updateTube(next(now));
+            }
 
-            final Notify n = it.next();
-            control.updateTube(n.payload);
             control.setTubeState(true);
-            return new StateResult(this, cyclePeriod);
+            return settings.cyclePeriod;
+        }
+    }
+
+    private int play(Animation animation, State next) {
+        stateAnimation.animation = animation;
+        stateAnimation.next = next;
+        return transition(stateAnimation, IMMEDIATE);
+    }
+
+    // plays precompiled frames and OE levels, one step per tick
+    public class StateAnimation implements State {
+        private Animation animation;
+        private State next;
+        private int step;
+
+        @Override
+        public void enter() {
+            step = 0;
+        }
+
+        @Override
+        public int execute(NixieControl control) {
+            if (next != stateIdle && !control.isSwitchOn())
+                return transition(stateOff, IMMEDIATE);
+
+            if (step >= animation.length())
+                return transition(next, IMMEDIATE);
+
+            control.updateTube(animation.frame(step));
+            control.setBrightness(animation.level(step));
+            step++;
+            return animation.getStepMillis();
         }
     }
 
     public class StateOff implements State {
         @Override
-        public StateResult execute(NixieControl control) {
-            updatesEnabled.set(false);
-            control.updateTube(byeTube);
-            control.setTubeState(true);
-            return new StateResult(new StateIdle(), blinkDuration);
+        public int execute(NixieControl control) {
+            updates.setEnabled(false);
+            return play(settings.byeAnimation, stateIdle);
         }
     }
 
-    private void startUpdateThread(GmailNotifier.Config gmailConfig) {
-        final List<NotifySource> sources = ImmutableList.of(new GmailNotifier(gmailConfig));
+    private void startUpdates(GmailNotifier.Config gmailConfig, PushListener.Config pushConfig) {
+        // accounts are polled concurrently by update threads, each on its own schedule
+        gmail = GmailNotifier.createAll(gmailConfig);
+        for (Map.Entry<String, GmailSource> e : gmail.entrySet())
+            updates.addSource(e.getKey(), e.getValue(), settings.pollPeriod(gmailConfig), settings.pollTimeout(gmailConfig));
+
+        if (pushConfig.enabled) {
+            try {
+                pushListener = new PushListener(pushConfig, updates.addPushSource("push"));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open push listener on " + pushConfig.bindAddress, e);
+            }
+            pushListener.start();
+        }
 
-        final Thread update = new Thread() {
-            @Override
-            public void run() {
-                while (true) {
-                    if (updatesEnabled.get()) {
-                        logger.debug("Updating");
+        updates.start();
+    }
 
-                        final List<Notify> newNotifies = Lists.newArrayList();
+    // Everything is built and checked here, on the watcher thread, before any of it is applied, so refused reload
+    // leaves previous config in effect. Display only swaps a reference between ticks.
+    // GPIO pins and backend, push listener, metrics, update threads and gmail accounts/mode/cache need a restart.
+    public void reconfigure(MainConfig config) {
+        final Settings next = new Settings(config.display, config.nixieModule.brightness);
+        NixieControl.checkBrightness(next.brightness);
+        PollSchedule.check(config.display.polling);
+        GmailNotifier.checkConfig(config.gmail);
+        final int pollPeriod = next.pollPeriod(config.gmail);
+        final int pollTimeout = next.pollTimeout(config.gmail);
+
+        updates.setPolling(config.display.polling);
+        for (Map.Entry<String, GmailSource> e : gmail.entrySet()) {
+            updates.reconfigure(e.getKey(), pollPeriod, pollTimeout);
+            e.getValue().reconfigure(config.gmail);
+        }
 
-                        for (NotifySource source : sources)
-                            newNotifies.addAll(source.query());
+        final Settings previous = latestSettings;
+        latestSettings = next;
 
-                        notifies.clear();
-                        notifies.addAll(newNotifies);
-                    } else {
-                        logger.debug("Skipping update due to switch state");
-                        notifies.clear();
-                    }
+        // long sleep would otherwise delay the new timing by a whole period
+        if (next.cyclePeriod < previous.cyclePeriod || next.brightness != previous.brightness)
+            scheduler.wake();
+    }
 
-                    try {
-                        Thread.sleep(updatePeriod);
-                    } catch (InterruptedException e) {
-                        logger.info("Interrupted", e);
-                        break;
-                    }
-                }
-            }
-        };
+    UpdateEngine getUpdateEngine() {
+        return updates;
+    }
+
+    int tick(NixieControl control) {
+        final Settings latest = latestSettings;
+        if (latest != settings) {
+            settings = latest;
+            if (latest.brightness != UNCHANGED)
+                control.setMaxBrightness(latest.brightness);
+            logger.debug("Applied reloaded settings");
+        }
+
+        logger.debug("State: {}", state.getClass().getName());
+        return state.execute(control);
+    }
 
-        update.setName("update");
-        update.setDaemon(true);
+    void startLoop(NixieControl control) {
+        control.addSwitchListener(on -> {
+            updates.setEnabled(on);
+            scheduler.wake();
+        });
 
-        update.start();
+        scheduler.reset();
+        transition(stateIdle, IMMEDIATE);
+    }
+
+    // control records into trace from now on, state changes are added here. Caller closes the trace
+    void setTrace(NixieControl control, FrameTrace trace) {
+        control.setTrace(trace);
+        this.trace = trace;
+        if (trace != null) {
+            trace.setStateNames(states.stream().map(s -> s.getClass().getSimpleName()).collect(Collectors.toList()));
+            trace.setState(states.indexOf(state));
+        }
+    }
+
+    private FrameTrace openTrace(int tubes) {
+        if (traceFile == null)
+            return null;
+
+        try {
+            final FrameTrace trace = new FrameTrace(traceFile, traceRecords, tubes);
+            logger.info("Tracing tube calls into {}", traceFile);
+            return trace;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Failed to open trace file {}, running without trace", traceFile, e);
+            return null;
+        }
+    }
+
+    // same loop as displayLoop, stops once clock reaches deadline. For simulations on VirtualClock,
+    // a tick scheduled past deadline stays pending for next call
+    void runUntil(NixieControl control, long deadlineNanos) {
+        while (scheduler.sleepUntil(deadlineNanos))
+            scheduler.schedule(tick(control));
     }
 
     public void displayLoop(NixieControl.Config nixieConfig) {
         logger.info("Initializing GPIO!");
         try (final NixieControl control = new NixieControl(nixieConfig)) {
+            StartupTimer.phase("GPIO initialized");
+            setTrace(control, openTrace(control.getTubeCount()));
+
             logger.info("Entering main loop");
-            State state = new StateIdle();
+            startLoop(control);
+            StartupTimer.phase("display loop started");
             while (true) {
-                logger.debug("State: {}", state.getClass().getName());
-                final StateResult r = state.execute(control);
-                state = r.nextState;
-
-                if (r.delay > 0) {
-                    try {
-                        Thread.sleep(r.delay);
-                    } catch (InterruptedException e) {
-                        logger.warn("Interrupted", e);
-                        break;
-                    }
+                final int delay = tick(control);
+
+                if (EXIT_AFTER_STARTUP)
+                    break;
+
+                if (!scheduler.sleep(delay)) {
+                    logger.warn("Interrupted");
+                    break;
                 }
             }
+        } finally {
+            if (pushListener != null)
+                pushListener.close();
+            updates.close();
+            logger.info("Tick lateness: {}", scheduler.getLateness());
+            closeTrace();
+        }
+    }
+
+    private void closeTrace() {
+        if (trace != null) {
+            try {
+                trace.close();
+            } catch (IOException e) {
+                logger.warn("Failed to flush trace file {}", traceFile, e);
+            }
+            trace = null;
+        }
+    }
+
+    // reload is a convenience, daemon runs on without it
+    private static ConfigWatcher startConfigWatcher(ConfigHelper configHelper, NixieNotify nixieNotify) {
+        try {
+            final ConfigWatcher watcher = new ConfigWatcher(configHelper, nixieNotify::reconfigure);
+            watcher.start();
+            return watcher;
+        } catch (IOException e) {
+            logger.warn("Failed to watch {}, config changes need restart", configHelper.getConfigFile(), e);
+            return null;
         }
     }
 
     public static void main(String[] args) {
+        StartupTimer.phase("main entered");
         final ConfigHelper configHelper = new ConfigHelper();
         final MainConfig config = configHelper.readConfig();
 
         final NixieNotify nixieNotify = new NixieNotify(config.display);
-        nixieNotify.startUpdateThread(config.gmail);
-        nixieNotify.displayLoop(config.nixieModule);
+        StartupTimer.phase("snapshot restored");
+
+        // sources may sit in OAuth or bind for a while, display doesn't wait for them
+        final CompletableFuture<ConfigWatcher> background = CompletableFuture.supplyAsync(() -> {
+            Metrics.start(config.metrics);
+            nixieNotify.startUpdates(config.gmail, config.push);
+            StartupTimer.phase("sources started");
+            return startConfigWatcher(configHelper, nixieNotify);
+        }).exceptionally(e -> {
+            logger.error("Background startup failed, running without sources", e);
+            return null;
+        });
+
+        try {
+            nixieNotify.displayLoop(config.nixieModule);
+        } finally {
+            final ConfigWatcher watcher = background.getNow(null);
+            if (watcher != null)
+                watcher.close();
+        }
+
+        if (EXIT_AFTER_STARTUP) {
+            // let background startup finish, so its classes end up in class list too
+            background.join();
+            System.exit(0);
+        }
     }
 
     public static void nixieTest(NixieControl control) {
@@ -282,7 +608,7 @@ public class NixieNotify {
                     System.out.println("Invalid token: " + line);
                 }
 
-                control.updateTube(stateBuilder.bakeBits());
+                control.updateTube(stateBuilder.bake());
             }
         }
     }
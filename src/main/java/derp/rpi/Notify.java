@@ -1,15 +1,41 @@
 package derp.rpi;
 
-import java.util.BitSet;
+import derp.rpi.hardware.Frame;
 
 public class Notify {
 
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 100;
+
+    public static final long NEVER = Long.MAX_VALUE;
+
     public final String id;
 
-    public final BitSet payload;
+    public final Frame payload;
+
+    // higher is shown first
+    public final int priority;
+
+    // wall clock millis
+    public final long expiresAt;
+
+    public Notify(String id, Frame payload) {
+        this(id, payload, PRIORITY_NORMAL, NEVER);
+    }
 
-    public Notify(String id, BitSet payload) {
+    public Notify(String id, Frame payload, int priority, long expiresAt) {
         this.id = id;
         this.payload = payload;
+        this.priority = priority;
+        this.expiresAt = expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+
+    @Override
+    public String toString() {
+        return id + "=" + payload + (priority != PRIORITY_NORMAL ? " !" + priority : "");
     }
 }
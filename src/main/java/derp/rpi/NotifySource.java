@@ -1,7 +1,18 @@
 package derp.rpi;
 
+import java.io.IOException;
 import java.util.List;
 
 public interface NotifySource {
-    public List<Notify> query();
+    // not a failure: source is still connecting or waiting for authorization, polled again after its period
+    public static class NotReadyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NotReadyException(String message) {
+            super(message);
+        }
+    }
+
+    // throws when source can't be reached, its previous result is kept
+    public List<Notify> query() throws IOException;
 }
@@ -0,0 +1,182 @@
+package derp.rpi;
+
+import java.util.*;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+// Notifies keyed by id, ordered by priority. Writers lock, readers only see immutable snapshots.
+// Expiry is judged on given clock, so simulations can run it on virtual time
+public class NotifyStore {
+
+    private static class Entry {
+        private final Notify notify;
+        private final String source;
+        private final long seq; // keeps order stable between equal priorities
+
+        private Entry(Notify notify, String source, long seq) {
+            this.notify = notify;
+            this.source = source;
+            this.seq = seq;
+        }
+    }
+
+    private static final Comparator<Entry> PRIORITY_ORDER = (a, b) -> {
+        final int c = Integer.compare(b.notify.priority, a.notify.priority);
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    };
+
+    private static final Comparator<Entry> EXPIRY_ORDER = (a, b) -> {
+        final int c = Long.compare(a.notify.expiresAt, b.notify.expiresAt);
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    };
+
+    private final Clock clock;
+
+    private final Map<String, Entry> byId = Maps.newHashMap();
+    private final NavigableSet<Entry> byPriority = new TreeSet<>(PRIORITY_ORDER);
+    private final NavigableSet<Entry> byExpiry = new TreeSet<>(EXPIRY_ORDER); // only entries that expire
+
+    private final Map<String, Set<String>> idsBySource = Maps.newHashMap();
+
+    private long nextSeq;
+
+    private boolean changed;
+
+    private volatile List<Notify> snapshot = ImmutableList.of();
+
+    public NotifyStore(Clock clock) {
+        this.clock = clock;
+    }
+
+    public List<Notify> getSnapshot() {
+        return snapshot;
+    }
+
+    // replaces everything source published before, returns true if snapshot changed
+    public synchronized boolean update(String source, Collection<Notify> notifies) {
+        final long now = clock.currentTimeMillis();
+        final Set<String> previous = idsBySource.getOrDefault(source, Collections.emptySet());
+        final Set<String> current = Sets.newHashSetWithExpectedSize(notifies.size());
+
+        for (Notify notify : notifies) {
+            if (notify.isExpired(now))
+                continue;
+
+            upsert(source, notify);
+            current.add(notify.id);
+        }
+
+        for (String id : previous)
+            if (!current.contains(id))
+                remove(id, source);
+
+        idsBySource.put(source, current);
+        return rebuild();
+    }
+
+    public synchronized boolean clear(String source) {
+        final Set<String> previous = idsBySource.remove(source);
+        if (previous != null)
+            for (String id : previous)
+                remove(id, source);
+
+        return rebuild();
+    }
+
+    public synchronized boolean expire() {
+        final long now = clock.currentTimeMillis();
+        while (!byExpiry.isEmpty() && byExpiry.first().notify.isExpired(now)) {
+            final Entry entry = byExpiry.first();
+            remove(entry.notify.id, entry.source);
+
+            final Set<String> ids = idsBySource.get(entry.source);
+            if (ids != null)
+                ids.remove(entry.notify.id);
+        }
+
+        return rebuild();
+    }
+
+    // Swaps notify source still publishes for a copy with new expiry. Order and everything shown stay, so keep-alive
+    // repeats need no save or display wake. Null when notify isn't in store anymore and has to be published again
+    public synchronized Notify refresh(String source, Notify notify, long expiresAt) {
+        final Entry entry = byId.get(notify.id);
+        if (entry == null || entry.notify != notify || !entry.source.equals(source) || notify.isExpired(clock.currentTimeMillis()))
+            return null;
+
+        final Notify refreshed = new Notify(notify.id, notify.payload, notify.priority, expiresAt);
+        upsert(source, refreshed);
+        rebuild();
+        return refreshed;
+    }
+
+    // in priority order within each source
+    public synchronized Map<String, List<Notify>> getBySource() {
+        final Map<String, List<Notify>> result = Maps.newLinkedHashMap();
+        for (Entry entry : byPriority)
+            result.computeIfAbsent(entry.source, s -> new ArrayList<>()).add(entry.notify);
+        return result;
+    }
+
+    public synchronized long getNextExpiry() {
+        return byExpiry.isEmpty() ? Notify.NEVER : byExpiry.first().notify.expiresAt;
+    }
+
+    private void upsert(String source, Notify notify) {
+        final Entry existing = byId.get(notify.id);
+        if (existing != null) {
+            if (existing.source.equals(source) && isSame(existing.notify, notify))
+                return;
+
+            unlink(existing);
+
+            // id moved between sources, previous owner no longer publishes it
+            if (!existing.source.equals(source)) {
+                final Set<String> ids = idsBySource.get(existing.source);
+                if (ids != null)
+                    ids.remove(notify.id);
+            }
+        }
+
+        final Entry entry = new Entry(notify, source, existing != null ? existing.seq : nextSeq++);
+        byId.put(notify.id, entry);
+        byPriority.add(entry);
+        if (notify.expiresAt != Notify.NEVER)
+            byExpiry.add(entry);
+        changed = true;
+    }
+
+    private void remove(String id, String source) {
+        final Entry entry = byId.get(id);
+        if (entry != null && entry.source.equals(source)) {
+            byId.remove(id);
+            unlink(entry);
+            changed = true;
+        }
+    }
+
+    private void unlink(Entry entry) {
+        byPriority.remove(entry);
+        if (entry.notify.expiresAt != Notify.NEVER)
+            byExpiry.remove(entry);
+    }
+
+    private static boolean isSame(Notify a, Notify b) {
+        return a == b || (a.payload.equals(b.payload) && a.priority == b.priority && a.expiresAt == b.expiresAt);
+    }
+
+    private boolean rebuild() {
+        if (!changed)
+            return false;
+
+        final ImmutableList.Builder<Notify> notifies = ImmutableList.builder();
+        for (Entry entry : byPriority)
+            notifies.add(entry.notify);
+
+        snapshot = notifies.build();
+        changed = false;
+        return true;
+    }
+}
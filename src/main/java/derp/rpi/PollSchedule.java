@@ -0,0 +1,72 @@
+package derp.rpi;
+
+import com.google.common.base.Preconditions;
+
+// Next poll delay of one source: fast after changes, doubling while quiet or failing, circuit opens after repeated failures
+public class PollSchedule {
+
+    public static class Config {
+        public int fastPeriod = 2 * 1000; // after a poll that changed something
+        public int maxQuietPeriod = 60 * 1000; // polls without changes double period up to this
+        public int maxErrorPeriod = 5 * 60 * 1000; // failed polls double period up to this
+        public int failuresToOpen = 5; // consecutive failures before circuit opens
+        public int openPeriod = 15 * 60 * 1000; // open circuit lets one trial poll through this often
+    }
+
+    public enum Outcome {
+        CHANGED,
+        QUIET,
+        FAILED
+    }
+
+    private static final int MAX_SHIFT = 20;
+
+    private int delay;
+    private int failures;
+
+    public static void check(Config config) {
+        Preconditions.checkArgument(config.fastPeriod > 0, "Invalid fast poll period: %s", config.fastPeriod);
+        Preconditions.checkArgument(config.maxQuietPeriod > 0, "Invalid max quiet period: %s", config.maxQuietPeriod);
+        Preconditions.checkArgument(config.maxErrorPeriod > 0, "Invalid max error period: %s", config.maxErrorPeriod);
+        Preconditions.checkArgument(config.failuresToOpen > 0, "Invalid failure count: %s", config.failuresToOpen);
+        Preconditions.checkArgument(config.openPeriod > 0, "Invalid open circuit period: %s", config.openPeriod);
+    }
+
+    // period is the configured one, never exceeded while source is healthy unless it stays quiet
+    public synchronized int next(Outcome outcome, int period, Config config) {
+        switch (outcome) {
+            case CHANGED:
+                failures = 0;
+                delay = Math.min(period, config.fastPeriod);
+                break;
+            case QUIET:
+                // first quiet poll after a burst or a failure drops back to normal period
+                delay = delay < period || failures > 0 ? period : (int)Math.max(period, Math.min(config.maxQuietPeriod, 2L * delay));
+                failures = 0;
+                break;
+            case FAILED:
+                failures++;
+                if (failures >= config.failuresToOpen)
+                    delay = config.openPeriod;
+                else
+                    delay = (int)Math.max(period, Math.min(config.maxErrorPeriod, (long)period << Math.min(failures, MAX_SHIFT)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown outcome: " + outcome);
+        }
+
+        return delay;
+    }
+
+    public synchronized boolean isOpen(Config config) {
+        return failures >= config.failuresToOpen;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized int getDelay() {
+        return delay;
+    }
+}
@@ -0,0 +1,90 @@
+package derp.rpi;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+import derp.rpi.hardware.Frame;
+
+// Last published notifies per source, so next start can show them before any source answers
+public class SnapshotFile {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotFile.class);
+
+    private static final int MAGIC = 0x4e584e53; // NXNS
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    public SnapshotFile(File file) {
+        this.file = file;
+    }
+
+    public void save(Map<String, List<Notify>> bySource) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+
+        try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+
+            output.writeInt(bySource.size());
+            for (Map.Entry<String, List<Notify>> e : bySource.entrySet()) {
+                output.writeUTF(e.getKey());
+                output.writeInt(e.getValue().size());
+                for (Notify notify : e.getValue()) {
+                    output.writeUTF(notify.id);
+                    output.writeShort(notify.payload.word());
+                    output.writeInt(notify.priority);
+                    output.writeLong(notify.expiresAt);
+                }
+            }
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // empty when there is nothing usable to restore
+    public Map<String, List<Notify>> load() {
+        if (!file.exists())
+            return Collections.emptyMap();
+
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readUnsignedByte() != VERSION)
+                throw new IOException("Unknown snapshot format in " + file);
+
+            final Map<String, List<Notify>> result = Maps.newLinkedHashMap();
+            final int sources = input.readInt();
+            for (int s = 0; s < sources; s++) {
+                final String source = input.readUTF();
+                final int count = input.readInt();
+                final List<Notify> notifies = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    final String id = input.readUTF();
+                    final Frame payload = Frame.ofWord(input.readUnsignedShort());
+                    final int priority = input.readInt();
+                    final long expiresAt = input.readLong();
+                    if (payload == null)
+                        throw new IOException("Invalid frame for " + id + " in " + file);
+                    notifies.add(new Notify(id, payload, priority, expiresAt));
+                }
+                result.put(source, notifies);
+            }
+
+            return result;
+        } catch (IOException e) {
+            logger.warn("Failed to load notify snapshot from {}, starting empty", file, e);
+            return Collections.emptyMap();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
@@ -0,0 +1,18 @@
+package derp.rpi;
+
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Logs startup phases against JVM start, so time spent before main shows up too
+public class StartupTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupTimer.class);
+
+    private StartupTimer() {}
+
+    public static void phase(String name) {
+        logger.info("Startup: {} at {} ms", name, ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+}
@@ -0,0 +1,416 @@
+package derp.rpi;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import derp.rpi.metrics.Counter;
+import derp.rpi.metrics.LatencyHistogram;
+import derp.rpi.metrics.Metrics;
+
+// Polls every source on its own adaptive schedule, publishes merged results as one immutable snapshot in priority order
+public class UpdateEngine implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpdateEngine.class);
+
+    private static final int SAVE_DELAY = 1000; // coalesces bursts of pushed updates into one write
+
+    public interface SnapshotListener {
+        public void onSnapshot(List<Notify> previous, List<Notify> current);
+    }
+
+    // entry point for sources that push instead of being polled
+    public interface Publisher {
+        public void publish(List<Notify> notifies);
+
+        // extends a notify last publish delivered, returns its replacement or null when it has to be published again
+        public Notify refresh(Notify notify, long expiresAt);
+    }
+
+    private class Slot {
+        private final String name;
+        private final NotifySource source; // null for pushed slots
+        private volatile int period;
+        private volatile int timeout;
+
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private volatile boolean answered; // for startup log only
+
+        private final PollSchedule schedule = new PollSchedule();
+
+        private final LatencyHistogram latency;
+        private final Counter errors;
+        private final Counter timeouts;
+        private final Counter circuitOpens;
+
+        private ScheduledFuture<?> nextPoll;
+
+        private Slot(String name, NotifySource source, int period, int timeout) {
+            this.name = name;
+            this.source = source;
+            this.period = period;
+            this.timeout = timeout;
+
+            this.latency = Metrics.latency("source." + name + ".latency");
+            this.errors = Metrics.counter("source." + name + ".errors");
+            this.timeouts = Metrics.counter("source." + name + ".timeouts");
+            this.circuitOpens = Metrics.counter("source." + name + ".circuit.opens");
+
+            if (source != null)
+                Metrics.gauge("source." + name + ".delay", schedule::getDelay);
+        }
+    }
+
+    private final List<Slot> slots = Lists.newCopyOnWriteArrayList();
+
+    private final Clock clock;
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+
+    // holds last good result of every source, kept when a poll fails or times out
+    private final NotifyStore store;
+
+    private ScheduledFuture<?> nextExpiry;
+
+    private SnapshotFile snapshotFile; // null when snapshot isn't persisted
+    private Set<String> restoredSources = Collections.emptySet();
+    private ScheduledFuture<?> pendingSave;
+
+    private final AtomicReference<List<Notify>> snapshot = new AtomicReference<>(ImmutableList.of());
+
+    private final SnapshotListener listener;
+
+    private volatile PollSchedule.Config polling = new PollSchedule.Config();
+
+    private volatile boolean enabled;
+    private boolean started;
+
+    // expiry is judged on clock, its sweeps are still timed by scheduler in real time
+    public UpdateEngine(int threads, Clock clock, SnapshotListener listener) {
+        Preconditions.checkArgument(threads > 0, "Invalid update thread count: %s", threads);
+        this.clock = clock;
+        this.store = new NotifyStore(clock);
+        this.listener = listener;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("update-scheduler").setDaemon(true).build());
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("update-%d").setDaemon(true).build());
+    }
+
+    public void setPolling(PollSchedule.Config polling) {
+        PollSchedule.check(polling);
+        this.polling = polling;
+    }
+
+    public synchronized void addSource(String name, NotifySource source, int period, int timeout) {
+        Preconditions.checkArgument(period > 0, "Invalid poll period for %s: %s", name, period);
+        Preconditions.checkArgument(timeout > 0, "Invalid poll timeout for %s: %s", name, timeout);
+
+        final Slot slot = new Slot(name, source, period, timeout);
+        slots.add(slot);
+
+        if (started)
+            schedule(slot, 0);
+    }
+
+    // next poll is moved to new period from now, a poll in flight keeps its old timeout
+    public synchronized void reconfigure(String name, int period, int timeout) {
+        Preconditions.checkArgument(period > 0, "Invalid poll period for %s: %s", name, period);
+        Preconditions.checkArgument(timeout > 0, "Invalid poll timeout for %s: %s", name, timeout);
+
+        for (Slot slot : slots) {
+            if (slot.source == null || !slot.name.equals(name))
+                continue;
+
+            final boolean periodChanged = slot.period != period;
+            slot.period = period;
+            slot.timeout = timeout;
+
+            if (periodChanged && started && !slot.busy.get())
+                schedule(slot, period);
+        }
+    }
+
+    public synchronized Publisher addPushSource(String name) {
+        final Slot slot = new Slot(name, null, 0, 0);
+        slots.add(slot);
+
+        return new Publisher() {
+            @Override
+            public void publish(List<Notify> notifies) {
+                if (store.update(slot.name, notifies))
+                    UpdateEngine.this.publish();
+            }
+
+            @Override
+            public Notify refresh(Notify notify, long expiresAt) {
+                final Notify refreshed = store.refresh(slot.name, notify, expiresAt);
+                if (refreshed != null)
+                    publishRefresh();
+                return refreshed;
+            }
+        };
+    }
+
+    // restored notifies stand in for their sources until these report again, or get cleared by switching off
+    public synchronized void restore(SnapshotFile file) {
+        this.snapshotFile = file;
+
+        int restored = 0;
+        final Map<String, List<Notify>> saved = file.load();
+        for (Map.Entry<String, List<Notify>> e : saved.entrySet()) {
+            store.update(e.getKey(), e.getValue());
+            restored += e.getValue().size();
+        }
+        restoredSources = saved.keySet();
+
+        if (restored > 0)
+            logger.info("Restored {} notifies from {}", restored, file);
+        publish();
+    }
+
+    public synchronized void start() {
+        Preconditions.checkState(!started, "Already started");
+        started = true;
+
+        // sources renamed or removed since snapshot was saved would never replace their entries
+        boolean dropped = false;
+        for (String source : restoredSources)
+            if (slots.stream().noneMatch(slot -> slot.name.equals(source)))
+                dropped |= store.clear(source);
+        if (dropped)
+            publish();
+
+        for (Slot slot : slots)
+            if (slot.source != null)
+                schedule(slot, 0);
+    }
+
+    public List<Notify> getSnapshot() {
+        return snapshot.get();
+    }
+
+    // disabled engine skips polls and publishes empty snapshot, enabling polls every source immediately
+    public synchronized void setEnabled(boolean enabled) {
+        if (this.enabled == enabled)
+            return;
+
+        this.enabled = enabled;
+        logger.debug("Updates {}", enabled ? "enabled" : "disabled");
+
+        // pushed results are kept, sender won't repeat them just because switch was off
+        for (Slot slot : slots) {
+            if (slot.source == null)
+                continue;
+
+            if (enabled) {
+                if (started)
+                    schedule(slot, 0);
+            } else {
+                store.clear(slot.name);
+            }
+        }
+
+        publish();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private synchronized void schedule(Slot slot, int delay) {
+        if (scheduler.isShutdown())
+            return;
+
+        if (slot.nextPoll != null)
+            slot.nextPoll.cancel(false);
+
+        slot.nextPoll = scheduler.schedule(() -> poll(slot), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll(Slot slot) {
+        if (!enabled) {
+            logger.debug("Skipping update of {} due to switch state", slot.name);
+            schedule(slot, slot.period);
+            return;
+        }
+
+        // sources aren't thread safe, a poll that outlived its timeout blocks the next one until it returns
+        if (!slot.busy.compareAndSet(false, true)) {
+            logger.debug("Previous update of {} still running", slot.name);
+            schedule(slot, slot.period);
+            return;
+        }
+
+        // whichever of completion and timeout comes first schedules next poll
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean entered = new AtomicBoolean();
+
+        final Future<?> running = workers.submit(() -> {
+            if (!entered.compareAndSet(false, true))
+                return;
+
+            final long start = System.nanoTime();
+            List<Notify> result = null;
+            Exception failure = null;
+            try {
+                result = slot.source.query();
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            } finally {
+                slot.latency.recordSince(start);
+                slot.busy.set(false);
+            }
+
+            if (!done.compareAndSet(false, true))
+                return;
+
+            if (failure instanceof NotifySource.NotReadyException) {
+                // failure count and backoff are left as they were, waiting for user isn't an outage
+                logger.debug("Update of {} skipped: {}", slot.name, failure.getMessage());
+                schedule(slot, slot.period);
+                return;
+            }
+
+            if (failure != null) {
+                slot.errors.inc();
+                onFailure(slot, failure);
+                return;
+            }
+
+            logger.debug("Updated {} in {} ms", slot.name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (!slot.answered) {
+                slot.answered = true;
+                StartupTimer.phase("first update of " + slot.name);
+            }
+
+            final boolean changed = enabled && store.update(slot.name, result);
+            if (changed)
+                publish();
+
+            final PollSchedule.Config polling = this.polling;
+            final boolean wasOpen = slot.schedule.isOpen(polling);
+            final int delay = slot.schedule.next(changed ? PollSchedule.Outcome.CHANGED : PollSchedule.Outcome.QUIET, slot.period, polling);
+            if (wasOpen)
+                logger.info("Update of {} recovered, circuit closed", slot.name);
+            schedule(slot, delay);
+        });
+
+        scheduler.schedule(() -> {
+            if (done.compareAndSet(false, true)) {
+                slot.timeouts.inc();
+                running.cancel(true);
+                if (entered.compareAndSet(false, true))
+                    slot.busy.set(false); // never got a worker
+                onFailure(slot, new TimeoutException("Timed out after " + slot.timeout + " ms"));
+            }
+        }, slot.timeout, TimeUnit.MILLISECONDS);
+    }
+
+    // previous result stays in store, only the next poll moves
+    private void onFailure(Slot slot, Exception failure) {
+        final PollSchedule.Config polling = this.polling;
+        final boolean wasOpen = slot.schedule.isOpen(polling);
+        final int delay = slot.schedule.next(PollSchedule.Outcome.FAILED, slot.period, polling);
+
+        if (wasOpen) {
+            logger.debug("Trial update of {} failed, next in {} ms", slot.name, delay, failure);
+        } else if (slot.schedule.isOpen(polling)) {
+            slot.circuitOpens.inc();
+            logger.warn("Update of {} failed {} times in a row, circuit open, next trial in {} ms",
+                    slot.name, slot.schedule.getFailures(), delay, failure);
+        } else {
+            logger.warn("Update of {} failed, keeping previous result, retry in {} ms: {}", slot.name, delay, failure.toString());
+            logger.debug("Update of {} failure", slot.name, failure);
+        }
+
+        schedule(slot, delay);
+    }
+
+    private synchronized void publish() {
+        final List<Notify> merged = enabled ? store.getSnapshot() : ImmutableList.of();
+
+        final List<Notify> previous = snapshot.getAndSet(merged);
+        if (previous != merged && listener != null)
+            listener.onSnapshot(previous, merged);
+
+        // disabled engine publishes empty, file keeps what was shown last
+        if (previous != merged && enabled)
+            scheduleSave();
+
+        scheduleExpiry();
+    }
+
+    // same notifies in same order, only expiry moved: display has nothing to wake for and file nothing worth a write.
+    // Expiry sweep timed for old expiry finds nothing and reschedules itself
+    private synchronized void publishRefresh() {
+        if (enabled)
+            snapshot.set(store.getSnapshot());
+    }
+
+    private synchronized void scheduleSave() {
+        if (snapshotFile == null || pendingSave != null || scheduler.isShutdown())
+            return;
+
+        pendingSave = scheduler.schedule(this::save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void save() {
+        pendingSave = null;
+        try {
+            snapshotFile.save(store.getBySource());
+        } catch (IOException e) {
+            logger.warn("Failed to save notify snapshot to {}", snapshotFile, e);
+        }
+    }
+
+    private synchronized void scheduleExpiry() {
+        if (nextExpiry != null)
+            nextExpiry.cancel(false);
+
+        final long expiresAt = store.getNextExpiry();
+        if (expiresAt == Notify.NEVER || scheduler.isShutdown())
+            return;
+
+        nextExpiry = scheduler.schedule(() -> {
+            if (!expire())
+                scheduleExpiry(); // woke early
+        }, Math.max(0, expiresAt - clock.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    // wall clock millis of next expiry, Notify.NEVER if nothing expires
+    long getNextExpiry() {
+        return store.getNextExpiry();
+    }
+
+    // drops everything expired by now, returns true if snapshot changed
+    boolean expire() {
+        if (!store.expire())
+            return false;
+
+        publish();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (pendingSave != null)
+            save();
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+}
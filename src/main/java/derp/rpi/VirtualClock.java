@@ -0,0 +1,43 @@
+package derp.rpi;
+
+import java.util.concurrent.TimeUnit;
+
+// Only moves when someone sleeps on it or advances it, so hours of display behaviour run in milliseconds.
+// Meant for single threaded simulations, nanoTime starts at 0
+public class VirtualClock implements Clock {
+
+    private final long epochMillis;
+
+    private long nanos;
+
+    public VirtualClock(long epochMillis) {
+        this.epochMillis = epochMillis;
+    }
+
+    @Override
+    public long nanoTime() {
+        return nanos;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return epochMillis + TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    // sleeping always takes exactly as long as asked
+    @Override
+    public void parkNanos(Object blocker, long nanos) {
+        advance(nanos);
+    }
+
+    public void advance(long nanos) {
+        // not Preconditions, its message arguments would box on every tick of allocation-free simulations
+        if (nanos < 0)
+            throw new IllegalArgumentException("Clock can't go back: " + nanos);
+        this.nanos += nanos;
+    }
+
+    public long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
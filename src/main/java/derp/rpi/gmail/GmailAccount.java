@@ -0,0 +1,92 @@
+package derp.rpi.gmail;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+import derp.rpi.ConfigHelper;
+import derp.rpi.hardware.StateBuilder.Color;
+
+// One watched mailbox. Per-account settings are looked up by name, so they follow reloaded configs
+class GmailAccount {
+
+    // default account keeps ids, credential and cache file from before accounts were configurable
+    static final String DEFAULT_CREDENTIAL = "user";
+    private static final String SOURCE = "gmail";
+
+    private final String name; // null for default account
+
+    private GmailAccount(String name) {
+        this.name = name;
+    }
+
+    static GmailAccount defaultAccount() {
+        return new GmailAccount(null);
+    }
+
+    static List<GmailAccount> all(GmailNotifier.Config config) {
+        if (config.accounts.isEmpty())
+            return ImmutableList.of(defaultAccount());
+
+        final ImmutableList.Builder<GmailAccount> result = ImmutableList.builder();
+        for (GmailNotifier.Account account : config.accounts) {
+            Preconditions.checkArgument(!Strings.isNullOrEmpty(account.name), "GMail account without name");
+            result.add(new GmailAccount(account.name));
+        }
+        return result.build();
+    }
+
+    public String getSourceName() {
+        return name != null ? SOURCE + ":" + name : SOURCE;
+    }
+
+    public String getIdPrefix() {
+        return getSourceName() + ":";
+    }
+
+    public String getMetricPrefix() {
+        return name != null ? SOURCE + "." + name + "." : SOURCE + ".";
+    }
+
+    public String getCredentialKey() {
+        return name != null ? name : DEFAULT_CREDENTIAL;
+    }
+
+    // null when account is no longer configured
+    private GmailNotifier.Account find(GmailNotifier.Config config) {
+        for (GmailNotifier.Account account : config.accounts)
+            if (account.name != null && account.name.equals(name))
+                return account;
+        return null;
+    }
+
+    public boolean isConfigured(GmailNotifier.Config config) {
+        return name == null ? config.accounts.isEmpty() : find(config) != null;
+    }
+
+    public Map<String, Color> getLabelColors(GmailNotifier.Config config) {
+        final GmailNotifier.Account account = name != null ? find(config) : null;
+        return account != null && account.labelColors != null ? account.labelColors : config.labelColors;
+    }
+
+    public File getCacheFile(GmailNotifier.Config config) {
+        final GmailNotifier.Account account = name != null ? find(config) : null;
+        if (account != null && account.cacheFile != null)
+            return ConfigHelper.resolveHomeFile(account.cacheFile);
+
+        // accounts must not share a cache
+        if (name != null && !Strings.isNullOrEmpty(config.cacheFile))
+            return ConfigHelper.resolveHomeFile(config.cacheFile + "." + name);
+
+        return ConfigHelper.resolveHomeFile(config.cacheFile);
+    }
+
+    @Override
+    public String toString() {
+        return getSourceName();
+    }
+}
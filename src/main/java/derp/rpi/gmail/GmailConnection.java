@@ -0,0 +1,149 @@
+package derp.rpi.gmail;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
+import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.GmailScopes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import derp.rpi.StartupTimer;
+
+// Lazily authorized Gmail service of one account on top of shared transport
+class GmailConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(GmailConnection.class);
+
+    private static final String APPLICATION_NAME = "Nixie Notify";
+
+    private static final String BATCH_PATH = "batch/gmail/v1";
+
+    private static final int AUTHORIZE_WAIT = 5; // seconds poll waits for authorization before reporting not ready
+
+    // one at a time, accounts share credential store and first authorization listens on one local port.
+    // Runs apart from polls, so account waiting for user neither blocks other accounts nor outlives poll timeouts
+    private static final ExecutorService authorizer = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("gmail-authorize").setDaemon(true).build());
+
+    private final String credentialKey; // accounts share credential store, keyed by this
+
+    private volatile Gmail gmail;
+
+    private volatile GmailTransport.Meter meter; // bytes of this account on shared transport
+
+    private Future<Gmail> authorizing;
+
+    GmailConnection() {
+        this(GmailAccount.DEFAULT_CREDENTIAL);
+    }
+
+    GmailConnection(String credentialKey) {
+        this.credentialKey = credentialKey;
+    }
+
+    GmailConnection(Gmail gmail, GmailTransport.Meter meter) {
+        this(GmailAccount.DEFAULT_CREDENTIAL);
+        this.gmail = gmail;
+        this.meter = meter;
+    }
+
+    // null while authorization is in progress, failed one is retried on next call.
+    // Waits a moment for it, so stored credentials are ready on first poll
+    public Gmail getService() {
+        final Gmail current = gmail;
+        if (current != null)
+            return current;
+
+        final Future<Gmail> pending = startAuthorization();
+        try {
+            return authorized(pending.get(AUTHORIZE_WAIT, TimeUnit.SECONDS));
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // poll timed out, authorization carries on
+            return null;
+        } catch (ExecutionException e) {
+            logger.warn("Failed to initialize GMail for {}", credentialKey, e.getCause());
+            authorizationFailed(pending);
+            return null;
+        }
+    }
+
+    private synchronized Future<Gmail> startAuthorization() {
+        if (authorizing == null) {
+            authorizing = authorizer.submit(() -> {
+                if (meter == null)
+                    meter = GmailTransport.getShared().createMeter(); // kept by retries, only ever set on this thread
+                return initializeGmailService(meter, credentialKey);
+            });
+        }
+
+        return authorizing;
+    }
+
+    private synchronized Gmail authorized(Gmail service) {
+        if (gmail == null) {
+            gmail = service;
+            StartupTimer.phase("GMail " + credentialKey + " authorized");
+        }
+
+        return gmail;
+    }
+
+    private synchronized void authorizationFailed(Future<Gmail> attempt) {
+        if (authorizing == attempt)
+            authorizing = null;
+    }
+
+    // of this account only, other accounts poll the same transport at the same time
+    public long getBytesReceived() {
+        final GmailTransport.Meter current = meter;
+        return current != null ? current.getBytesReceived() : 0;
+    }
+
+    // per-API batch endpoint, relative to root so it follows service root url
+    static BatchRequest createBatch(Gmail service) {
+        return service.batch().setBatchUrl(new GenericUrl(service.getRootUrl() + BATCH_PATH));
+    }
+
+    // only called on authorizer thread, may wait for user to grant access in browser
+    private static Gmail initializeGmailService(GmailTransport.Meter meter, String credentialKey) throws Exception {
+        final InputStream in = GmailConnection.class.getResourceAsStream("/client_secret.json");
+        final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+        final GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(jsonFactory, new InputStreamReader(in));
+
+        final File dataStoreDir = new File(System.getProperty("user.home"), ".credentials/nixie-notify");
+        final FileDataStoreFactory dataStoreFactory = new FileDataStoreFactory(dataStoreDir);
+
+        final HttpTransport httpTransport = meter.getTransport().getTransport();
+
+        final GoogleAuthorizationCodeFlow flow =
+                new GoogleAuthorizationCodeFlow.Builder(httpTransport, jsonFactory, clientSecrets, Arrays.asList(GmailScopes.GMAIL_READONLY))
+                        .setDataStoreFactory(dataStoreFactory)
+                        .setAccessType("offline")
+                        .build();
+        final Credential credential = new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize(credentialKey);
+        logger.info("Credentials saved to {}", dataStoreDir.getAbsolutePath());
+
+        return new Gmail.Builder(httpTransport, jsonFactory, meter.initializer(credential))
+                .setApplicationName(APPLICATION_NAME)
+                .build();
+    }
+}
@@ -0,0 +1,163 @@
+package derp.rpi.gmail;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Label;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
+
+import derp.rpi.Notify;
+import derp.rpi.NotifySource;
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.metrics.Counter;
+import derp.rpi.metrics.Histogram;
+import derp.rpi.metrics.Metrics;
+
+// Reads unread totals of configured labels, one batched call per poll regardless of mailbox size
+public class GmailLabelCountNotifier implements GmailSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(GmailLabelCountNotifier.class);
+
+    private static final String USER = "me";
+
+    private static final String LABEL_FIELDS = "id,messagesUnread";
+
+    private static final int LABEL_NOT_FOUND = 404;
+
+    private Map<String, Color> labelColors;
+
+    // same ordering as message mode, so notifies come out in the same order
+    private String[] labels;
+    private int[] counts;
+
+    private final AtomicReference<GmailNotifier.Config> pendingConfig = new AtomicReference<>();
+
+    private final GmailConnection connection;
+
+    private List<Notify> notifies = ImmutableList.of();
+
+    private final GmailAccount account;
+
+    private final Counter errors;
+    private final Histogram pollBytes;
+
+    public GmailLabelCountNotifier(GmailNotifier.Config config) {
+        this(config, GmailAccount.defaultAccount(), new GmailConnection());
+    }
+
+    GmailLabelCountNotifier(GmailNotifier.Config config, Gmail gmail, GmailTransport.Meter meter) {
+        this(config, GmailAccount.defaultAccount(), new GmailConnection(gmail, meter));
+    }
+
+    GmailLabelCountNotifier(GmailNotifier.Config config, GmailAccount account, GmailConnection connection) {
+        this.account = account;
+        this.connection = connection;
+        setLabelColors(account.getLabelColors(config));
+
+        this.errors = Metrics.counter(account.getMetricPrefix() + "errors");
+        this.pollBytes = Metrics.histogram(account.getMetricPrefix() + "poll.bytes");
+
+        Metrics.gauge(account.getMetricPrefix() + "bytes", connection::getBytesReceived);
+    }
+
+    private void setLabelColors(Map<String, Color> colors) {
+        this.labelColors = ImmutableMap.copyOf(colors);
+        this.labels = Ordering.natural().sortedCopy(labelColors.keySet()).toArray(new String[0]);
+        this.counts = new int[labels.length];
+    }
+
+    @Override
+    public void reconfigure(GmailNotifier.Config config) {
+        pendingConfig.set(config);
+    }
+
+    @Override
+    public List<Notify> query() throws IOException {
+        final GmailNotifier.Config config = pendingConfig.getAndSet(null);
+        if (config != null && account.isConfigured(config) && !account.getLabelColors(config).equals(labelColors)) {
+            // counts of new label set are all fetched by this poll anyway
+            setLabelColors(account.getLabelColors(config));
+            notifies = createNotifies();
+            logger.info("Label colors of {} reloaded, counting {} labels", account, labels.length);
+        }
+
+        final Gmail service = connection.getService();
+        if (service == null)
+            throw new NotifySource.NotReadyException("GMail not authorized");
+
+        final long bytesBefore = connection.getBytesReceived();
+        try {
+            final int[] polled = fetchUnreadCounts(service);
+
+            final long received = connection.getBytesReceived() - bytesBefore;
+            pollBytes.recordValue(received);
+            logger.debug("Poll received {} bytes", received);
+
+            if (!Arrays.equals(polled, counts)) {
+                System.arraycopy(polled, 0, counts, 0, counts.length);
+                notifies = createNotifies();
+            }
+
+            return notifies;
+
+        } catch (IOException e) {
+            errors.inc();
+            throw e;
+        }
+    }
+
+    private int[] fetchUnreadCounts(Gmail service) throws IOException {
+        // labels that fail individually keep their last count
+        final int[] result = counts.clone();
+        if (labels.length == 0)
+            return result;
+
+        final BatchRequest batch = GmailConnection.createBatch(service);
+        for (int i = 0; i < labels.length; i++) {
+            final int slot = i;
+            service.users().labels().get(USER, labels[slot])
+                    .setFields(LABEL_FIELDS)
+                    .queue(batch, new JsonBatchCallback<Label>() {
+                        @Override
+                        public void onSuccess(Label t, HttpHeaders responseHeaders) {
+                            final Integer unread = t.getMessagesUnread();
+                            result[slot] = unread != null ? unread : 0;
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                            if (e.getCode() == LABEL_NOT_FOUND)
+                                result[slot] = 0;
+                            logger.warn("Failed to get label {}, error = {}", labels[slot], e);
+                        }
+                    });
+        }
+
+        batch.execute();
+        return result;
+    }
+
+    private List<Notify> createNotifies() {
+        final ImmutableList.Builder<Notify> notifies = ImmutableList.builder();
+        for (int slot = 0; slot < labels.length; slot++) {
+            if (counts[slot] > 0) {
+                final String label = labels[slot];
+                final Color color = labelColors.getOrDefault(label, Color.WHITE);
+                notifies.add(new Notify(account.getIdPrefix() + label, GmailNotifier.createNotifyPayload(color, counts[slot])));
+            }
+        }
+
+        return notifies.build();
+    }
+}
@@ -1,39 +1,46 @@
 package derp.rpi.gmail;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
-import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Maps;
-import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.gmail.Gmail;
-import com.google.api.services.gmail.GmailScopes;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryLabelAdded;
+import com.google.api.services.gmail.model.HistoryLabelRemoved;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.HistoryMessageDeleted;
+import com.google.api.services.gmail.model.ListHistoryResponse;
 import com.google.api.services.gmail.model.ListMessagesResponse;
 import com.google.api.services.gmail.model.Message;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import derp.rpi.Notify;
 import derp.rpi.NotifySource;
-import derp.rpi.hardware.StateBuilder;
+import derp.rpi.hardware.Frame;
 import derp.rpi.hardware.StateBuilder.Color;
 import derp.rpi.hardware.StateBuilder.Digit;
+import derp.rpi.metrics.Counter;
+import derp.rpi.metrics.Histogram;
+import derp.rpi.metrics.Metrics;
 
-public class GmailNotifier implements NotifySource {
+public class GmailNotifier implements GmailSource {
 
     private static final Map<String, Color> DEFAULT_LABEL_COLORS = ImmutableMap.of(
             "CATEGORY_PERSONAL", Color.WHITE,
@@ -43,141 +50,461 @@ public class GmailNotifier implements NotifySource {
             "IMPORTANT", Color.RED
             );
 
+    public enum Mode {
+        MESSAGES, // tracks every unread inbox message, counts only messages in INBOX
+        LABEL_COUNTS // reads unread totals of each label, fixed cost per poll but includes archived mail
+    }
+
+    public static class Account {
+        public String name; // also credential key, notify ids become gmail:<name>:<label>
+        public Map<String, Color> labelColors; // null uses top level labelColors
+        public String cacheFile; // null appends name to top level cacheFile, empty disables
+    }
+
     public static class Config {
+        public Mode mode = Mode.MESSAGES;
+
+        public List<Account> accounts = new ArrayList<>(); // empty watches single default account
+
+        public int pollPeriod = 0; // 0 uses display updatePeriod
+        public int pollTimeout = 0; // 0 uses display updateTimeout
+
         public Map<String, Color> labelColors = new HashMap<>(DEFAULT_LABEL_COLORS);
+
+        public boolean incrementalSync = true;
+
+        public int listPageSize = 500;
+        public int batchSize = 50; // larger batches get throttled by Gmail
+        public int batchParallelism = 2; // shared by all accounts
+        public int maxFetchesPerPoll = 1000; // rest of cold start is fetched on following polls
+
+        public int maxCachedMessages = 20000; // warns past this, unread messages are never dropped
+        public String cacheFile = ".nixie_notify_gmail.cache"; // relative to home, empty to disable
     }
 
     private static final Logger logger = LoggerFactory.getLogger(GmailNotifier.class);
 
-    private static final String APPLICATION_NAME = "Nixie Notify";
+    private static final String USER = "me";
 
-    private final Map<String, Color> labelColors;
+    private static final String LABEL_UNREAD = "UNREAD";
+    private static final String LABEL_INBOX = "INBOX";
 
-    public GmailNotifier(Config config) {
-        this.labelColors = ImmutableMap.copyOf(config.labelColors);
-    }
+    private static final int HISTORY_EXPIRED = 404;
+
+    // only ids and labels are ever read, so skip bodies and everything else
+    private static final String FORMAT_MINIMAL = "minimal";
+    private static final String MESSAGE_FIELDS = "id,labelIds";
+    private static final String LIST_FIELDS = "messages/id,nextPageToken";
+    private static final String HISTORY_FIELDS = "history(messagesAdded/message(id,labelIds),labelsAdded/message(id,labelIds),"
+            + "labelsRemoved/message(id,labelIds),messagesDeleted/message/id),historyId,nextPageToken";
+
+    private Map<String, Color> labelColors;
 
-    private static Gmail initializeGmailService() throws Exception {
-        final InputStream in = GmailNotifier.class.getResourceAsStream("/client_secret.json");
-        final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-        final GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(jsonFactory, new InputStreamReader(in));
+    private final boolean incrementalSync;
 
-        final File dataStoreDir = new File(System.getProperty("user.home"), ".credentials/nixie-notify");
-        final FileDataStoreFactory dataStoreFactory = new FileDataStoreFactory(dataStoreDir);
+    private long listPageSize;
+    private int batchSize;
+    private int maxFetchesPerPoll;
 
-        final HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    private final AtomicReference<Config> pendingConfig = new AtomicReference<>();
 
-        final GoogleAuthorizationCodeFlow flow =
-                new GoogleAuthorizationCodeFlow.Builder(httpTransport, jsonFactory, clientSecrets, Arrays.asList(GmailScopes.GMAIL_READONLY))
-                        .setDataStoreFactory(dataStoreFactory)
-                        .setAccessType("offline")
-                        .build();
-        final Credential credential = new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
-        logger.info("Credentials saved to {}", dataStoreDir.getAbsolutePath());
+    private final ExecutorService batchExecutor;
 
-        return new Gmail.Builder(httpTransport, jsonFactory, credential)
-                .setApplicationName(APPLICATION_NAME)
-                .build();
+    // one source per account, keyed by update source name. Accounts share transport and batch threads,
+    // each keeps its own connection, cache and history id, so a quiet account costs one history call per poll
+    public static Map<String, GmailSource> createAll(Config config) {
+        final ExecutorService batchExecutor = config.mode == Mode.MESSAGES ? createBatchExecutor(config) : null;
+
+        final Map<String, GmailSource> result = new LinkedHashMap<>();
+        for (GmailAccount account : GmailAccount.all(config)) {
+            final GmailConnection connection = new GmailConnection(account.getCredentialKey());
+            final GmailSource previous = result.put(account.getSourceName(), create(config, account, connection, batchExecutor));
+            Preconditions.checkArgument(previous == null, "Duplicate GMail account: %s", account);
+        }
+
+        return result;
     }
 
-    private Gmail gmail;
+    private static GmailSource create(Config config, GmailAccount account, GmailConnection connection, ExecutorService batchExecutor) {
+        switch (config.mode) {
+            case MESSAGES:
+                return new GmailNotifier(config, account, connection, batchExecutor);
+            case LABEL_COUNTS:
+                return new GmailLabelCountNotifier(config, account, connection);
+            default:
+                throw new IllegalArgumentException("Unknown GMail mode: " + config.mode);
+        }
+    }
 
-    private Gmail getGmailService() {
-        if (gmail == null) {
-            try {
-                gmail = initializeGmailService();
-            } catch (Exception e) {
-                logger.warn("Failed to initialize GMail", e);
-            }
+    private static ExecutorService createBatchExecutor(Config config) {
+        return Executors.newFixedThreadPool(config.batchParallelism,
+                new ThreadFactoryBuilder().setNameFormat("gmail-batch-%d").setDaemon(true).build());
+    }
+
+    public GmailNotifier(Config config) {
+        this(config, GmailAccount.defaultAccount(), new GmailConnection(), createBatchExecutor(config));
+    }
+
+    GmailNotifier(Config config, GmailAccount account, GmailConnection connection, ExecutorService batchExecutor) {
+        this.account = account;
+        this.connection = connection;
+        this.labelColors = ImmutableMap.copyOf(account.getLabelColors(config));
+        this.incrementalSync = config.incrementalSync;
+
+        checkConfig(config);
+        this.listPageSize = config.listPageSize;
+        this.batchSize = config.batchSize;
+        this.maxFetchesPerPoll = config.maxFetchesPerPoll;
+
+        this.batchExecutor = batchExecutor;
+
+        final String metrics = account.getMetricPrefix();
+        this.errors = Metrics.counter(metrics + "errors");
+        this.cacheHits = Metrics.counter(metrics + "cache.hits");
+        this.cacheMisses = Metrics.counter(metrics + "cache.misses");
+        this.batchSizes = Metrics.histogram(metrics + "batch.size");
+        this.pollBytes = Metrics.histogram(metrics + "poll.bytes");
+
+        this.counters = new LabelCounters(labelColors.keySet());
+        this.cache = new MessageCache(config.maxCachedMessages, counters);
+        this.cacheFile = account.getCacheFile(config);
+        loadCache();
+
+        Metrics.gauge(metrics + "bytes", connection::getBytesReceived);
+        Metrics.gauge(metrics + "cache.size", cache::size);
+    }
+
+    private void loadCache() {
+        if (cacheFile == null || !cacheFile.exists())
+            return;
+
+        try {
+            cache.load(cacheFile);
+        } catch (IOException e) {
+            logger.warn("Failed to load message cache from {}, starting empty", cacheFile, e);
+            return;
         }
 
-        return gmail;
+        // cache was complete when saved, so incremental sync can continue from there
+        if (incrementalSync && cache.getHistoryId() != null) {
+            unreadMessagesIds.addAll(cache.ids());
+            historyId = cache.getHistoryId();
+        }
     }
 
-    private static class CachedMessage {
-        public final List<String> labels;
+    private void saveCache() {
+        if (cacheFile == null)
+            return;
 
-        public CachedMessage(List<String> labels) {
-            this.labels = ImmutableList.copyOf(labels);
+        final boolean complete = cache.size() == unreadMessagesIds.size();
+        cache.setHistoryId(complete ? historyId : null);
+
+        if (!cache.isDirty())
+            return;
+
+        try {
+            cache.save(cacheFile);
+        } catch (IOException e) {
+            logger.warn("Failed to save message cache to {}", cacheFile, e);
         }
     }
 
-    private final Map<String, CachedMessage> cache = Maps.newHashMap();
+    GmailNotifier(Config config, Gmail gmail, GmailTransport.Meter meter) {
+        this(config, GmailAccount.defaultAccount(), new GmailConnection(gmail, meter), createBatchExecutor(config));
+    }
+
+    private final GmailAccount account;
+
+    private final GmailConnection connection;
+
+    private final Counter errors;
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Histogram batchSizes;
+    private final Histogram pollBytes;
+
+    private LabelCounters counters;
+
+    // every cached message is unread, so cache holds exactly the messages being counted
+    private final MessageCache cache;
+
+    private List<Notify> notifies = ImmutableList.of();
+
+    private final File cacheFile;
+
+    // messages currently UNREAD and in INBOX
+    private final Set<String> unreadMessagesIds = Sets.newHashSet();
+
+    // mailbox state that unreadMessagesIds reflects, null until first full sync
+    private BigInteger historyId;
+
+    // sizes below are applied by polling thread later, so they are checked while reload can still be refused
+    public static void checkConfig(Config config) {
+        Preconditions.checkArgument(config.listPageSize > 0, "Invalid GMail listPageSize: %s", config.listPageSize);
+        Preconditions.checkArgument(config.batchSize > 0, "Invalid GMail batchSize: %s", config.batchSize);
+        Preconditions.checkArgument(config.maxFetchesPerPoll > 0, "Invalid GMail maxFetchesPerPoll: %s", config.maxFetchesPerPoll);
+    }
 
     @Override
-    public List<Notify> query() {
-        final Gmail service = getGmailService();
-        final BatchRequest batch = service.batch();
-        try {
-            final ListMessagesResponse unreadMessages = service.users().messages().list("me").setLabelIds(Arrays.asList("UNREAD", "INBOX")).execute();
-            final List<Message> messages = unreadMessages.getMessages();
+    public void reconfigure(Config config) {
+        checkConfig(config);
+        pendingConfig.set(config);
+    }
 
-            final Set<String> unreadMessagesIds = Sets.newHashSet();
+    // runs on polling thread, so cache and counters are never touched concurrently
+    private void applyPendingConfig() {
+        final Config config = pendingConfig.getAndSet(null);
+        if (config == null)
+            return;
 
-            if (messages != null)
-                messages.stream().map(Message::getId).forEach(unreadMessagesIds::add);
-
-            final Set<String> newMessages = Sets.difference(unreadMessagesIds, cache.keySet());
-
-            for (String newMessageId : newMessages) {
-                logger.info("Fetching {}", newMessageId);
-                service.users().messages().get("me", newMessageId).queue(batch, new JsonBatchCallback<Message>() {
-                    @Override
-                    public void onSuccess(Message t, HttpHeaders responseHeaders) {
-                        cache.put(t.getId(), new CachedMessage(t.getLabelIds()));
-                    }
-
-                    @Override
-                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-                        logger.warn("Failed to get message, error = {}", e);
-                    }
-                });
-            }
+        if (!account.isConfigured(config)) {
+            logger.warn("Account {} was removed from config, keeps polling until restart", account);
+            return;
+        }
 
-            if (batch.size() > 0)
-                batch.execute();
+        this.listPageSize = config.listPageSize;
+        this.batchSize = config.batchSize;
+        this.maxFetchesPerPoll = config.maxFetchesPerPoll;
 
-            final Multiset<String> labels = TreeMultiset.create();
+        final Map<String, Color> colors = ImmutableMap.copyOf(account.getLabelColors(config));
+        if (colors.equals(labelColors))
+            return;
 
-            for (String msgId : unreadMessagesIds) {
-                final CachedMessage msg = cache.get(msgId);
-                if (msg != null)
-                    labels.addAll(msg.labels);
-            }
+        if (!colors.keySet().equals(labelColors.keySet())) {
+            counters = new LabelCounters(colors.keySet());
+            cache.setCounters(counters);
+        }
+
+        labelColors = colors;
+        notifies = createNotifies();
+        logger.info("Label colors of {} reloaded, counting {} labels", account, counters.size());
+    }
 
-            labels.retainAll(labelColors.keySet());
+    @Override
+    public List<Notify> query() throws IOException {
+        applyPendingConfig();
 
-            final List<Notify> notifies = Lists.newArrayList();
-            for (Multiset.Entry<String> e : labels.entrySet()) {
-                notifies.add(new Notify("gmail:" + e.getElement(), createNotifyPayload(e.getElement(), e.getCount())));
+        final Gmail service = connection.getService();
+        if (service == null)
+            throw new NotifySource.NotReadyException("GMail not authorized");
+
+        final long bytesBefore = connection.getBytesReceived();
+        try {
+            if (incrementalSync && historyId != null) {
+                try {
+                    applyHistory(service);
+                } catch (GoogleJsonResponseException e) {
+                    if (e.getStatusCode() != HISTORY_EXPIRED)
+                        throw e;
+
+                    logger.info("History id {} expired, doing full sync", historyId);
+                    fullSync(service);
+                }
+            } else {
+                fullSync(service);
             }
 
-            return notifies;
+            fetchMissingMessages(service);
+
+            saveCache();
+
+            final long received = connection.getBytesReceived() - bytesBefore;
+            pollBytes.recordValue(received);
+            logger.debug("Poll received {} bytes", received);
+
+            return aggregate();
 
         } catch (IOException e) {
-            logger.warn("Failed to fetch messages from GMail", e);
-            return Collections.emptyList();
+            errors.inc();
+            throw e;
         }
     }
 
-    private BitSet createNotifyPayload(String label, int count) {
-        final StateBuilder builder = new StateBuilder();
+    private void fullSync(Gmail service) throws IOException {
+        // history id is taken before listing, so changes made during listing are replayed on next poll
+        final BigInteger startHistoryId = incrementalSync ? service.users().getProfile(USER).execute().getHistoryId() : null;
+
+        final Set<String> unread = Sets.newHashSet();
+
+        String pageToken = null;
+        do {
+            final ListMessagesResponse unreadMessages = service.users().messages().list(USER)
+                    .setLabelIds(Arrays.asList(LABEL_UNREAD, LABEL_INBOX))
+                    .setMaxResults(listPageSize)
+                    .setPageToken(pageToken)
+                    .setFields(LIST_FIELDS)
+                    .execute();
+
+            final List<Message> messages = unreadMessages.getMessages();
+            if (messages != null)
+                messages.stream().map(Message::getId).forEach(unread::add);
 
-        final Color color = labelColors.getOrDefault(label, Color.WHITE);
-        builder.setColor(color);
+            pageToken = unreadMessages.getNextPageToken();
+        } while (pageToken != null);
 
-        if (count > 9) {
-            builder.setDigit(Optional.of(Digit.D9));
-            builder.setLowerDot(true);
-            builder.setUpperDot(true);
+        unreadMessagesIds.clear();
+        unreadMessagesIds.addAll(unread);
+
+        cache.retainAll(unreadMessagesIds);
+
+        historyId = startHistoryId;
+    }
+
+    private void applyHistory(Gmail service) throws IOException {
+        String pageToken = null;
+        BigInteger latestHistoryId;
+        do {
+            final ListHistoryResponse response = service.users().history().list(USER)
+                    .setStartHistoryId(historyId)
+                    .setPageToken(pageToken)
+                    .setFields(HISTORY_FIELDS)
+                    .execute();
+
+            final List<History> history = response.getHistory();
+            if (history != null)
+                history.forEach(this::applyHistory);
+
+            latestHistoryId = response.getHistoryId();
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null);
+
+        historyId = latestHistoryId;
+    }
+
+    private void applyHistory(History h) {
+        if (h.getMessagesAdded() != null)
+            for (HistoryMessageAdded added : h.getMessagesAdded())
+                updateMessage(added.getMessage());
+
+        if (h.getLabelsAdded() != null)
+            for (HistoryLabelAdded added : h.getLabelsAdded())
+                updateMessage(added.getMessage());
+
+        if (h.getLabelsRemoved() != null)
+            for (HistoryLabelRemoved removed : h.getLabelsRemoved())
+                updateMessage(removed.getMessage());
+
+        if (h.getMessagesDeleted() != null)
+            for (HistoryMessageDeleted deleted : h.getMessagesDeleted())
+                removeMessage(deleted.getMessage().getId());
+    }
+
+    // history entries carry full label list of message, so no extra fetch is needed
+    void updateMessage(Message message) {
+        final List<String> labelIds = message.getLabelIds();
+        if (labelIds == null)
+            return;
+
+        if (labelIds.contains(LABEL_UNREAD) && labelIds.contains(LABEL_INBOX)) {
+            unreadMessagesIds.add(message.getId());
+            cache.put(message.getId(), labelIds);
         } else {
-            builder.setDigit(Optional.of(Digit.values()[count]));
+            removeMessage(message.getId());
+        }
+    }
+
+    private void removeMessage(String id) {
+        unreadMessagesIds.remove(id);
+        cache.remove(id);
+    }
+
+    private void fetchMissingMessages(Gmail service) throws IOException {
+        if (cache.size() == unreadMessagesIds.size()) {
+            cacheHits.add(unreadMessagesIds.size());
+            return;
+        }
+
+        final Set<String> newMessages = Sets.difference(unreadMessagesIds, cache.ids());
+        final int missing = newMessages.size();
+        cacheHits.add(unreadMessagesIds.size() - missing);
+        cacheMisses.add(missing);
+        if (missing == 0)
+            return;
+
+        final List<String> toFetch = ImmutableList.copyOf(Iterables.limit(newMessages, maxFetchesPerPoll));
+        if (toFetch.size() < newMessages.size())
+            logger.info("Fetching {} of {} new messages, rest will follow on next polls", toFetch.size(), newMessages.size());
+
+        final List<Future<Map<String, List<String>>>> chunks = Lists.newArrayList();
+        for (List<String> chunk : Lists.partition(toFetch, batchSize)) {
+            batchSizes.recordValue(chunk.size());
+            chunks.add(batchExecutor.submit(() -> fetchLabels(service, chunk)));
+        }
+
+        // apply every chunk that made it, so a failure doesn't throw away progress
+        IOException failure = null;
+        for (Future<Map<String, List<String>>> chunk : chunks) {
+            try {
+                for (Map.Entry<String, List<String>> e : Futures.getChecked(chunk, IOException.class).entrySet())
+                    cache.put(e.getKey(), e.getValue());
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private static Map<String, List<String>> fetchLabels(Gmail service, List<String> messageIds) throws IOException {
+        final Map<String, List<String>> result = Maps.newHashMap();
+        final BatchRequest batch = GmailConnection.createBatch(service);
+
+        for (String messageId : messageIds) {
+            logger.debug("Fetching {}", messageId);
+            service.users().messages().get(USER, messageId)
+                    .setFormat(FORMAT_MINIMAL)
+                    .setFields(MESSAGE_FIELDS)
+                    .queue(batch, new JsonBatchCallback<Message>() {
+                        @Override
+                        public void onSuccess(Message t, HttpHeaders responseHeaders) {
+                            result.put(t.getId(), t.getLabelIds());
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                            logger.warn("Failed to get message, error = {}", e);
+                        }
+                    });
         }
 
-        return builder.bakeBits();
+        batch.execute();
+        return result;
+    }
+
+    // counters are kept up to date by cache, notifies are only rebuilt when they moved
+    List<Notify> aggregate() {
+        if (counters.pollChanged())
+            notifies = createNotifies();
+
+        return notifies;
+    }
+
+    private List<Notify> createNotifies() {
+        final ImmutableList.Builder<Notify> notifies = ImmutableList.builder();
+        for (int slot = 0; slot < counters.size(); slot++) {
+            final int count = counters.getCount(slot);
+            if (count > 0) {
+                final String label = counters.getLabel(slot);
+                notifies.add(new Notify(account.getIdPrefix() + label, createNotifyPayload(label, count)));
+            }
+        }
+
+        return notifies.build();
+    }
+
+    private Frame createNotifyPayload(String label, int count) {
+        return createNotifyPayload(labelColors.getOrDefault(label, Color.WHITE), count);
+    }
+
+    static Frame createNotifyPayload(Color color, int count) {
+        if (count > 9)
+            return Frame.of(color, Digit.D9, true, true);
+
+        return Frame.of(color, Digit.of(count), false, false);
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         GmailNotifier notifier = new GmailNotifier(new Config());
         final List<Notify> query = notifier.query();
         System.out.println(query);
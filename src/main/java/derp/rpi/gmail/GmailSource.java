@@ -0,0 +1,8 @@
+package derp.rpi.gmail;
+
+import derp.rpi.NotifySource;
+
+// Takes a reloaded config between polls, keeping cached mailbox state
+public interface GmailSource extends NotifySource {
+    public void reconfigure(GmailNotifier.Config config);
+}
@@ -0,0 +1,147 @@
+package derp.rpi.gmail;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+
+// Pooled keep-alive transport shared by all Gmail polls, counts bytes received on the wire in total and per meter
+class GmailTransport {
+
+    private static final String METER_ATTRIBUTE = "nixie.meter";
+
+    // meter of request being executed on this thread, set by its execute interceptor right before HttpClient runs it.
+    // Batch runs interceptors of all its parts, which belong to the same account
+    private static final ThreadLocal<Meter> executing = new ThreadLocal<>();
+
+    private static GmailTransport shared;
+
+    private final ApacheHttpTransport transport;
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    // bytes of requests built with its initializer, one per account while accounts are polled in parallel
+    public class Meter {
+        private final AtomicLong bytesReceived = new AtomicLong();
+
+        private Meter() {}
+
+        public GmailTransport getTransport() {
+            return GmailTransport.this;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        public HttpRequestInitializer initializer(HttpRequestInitializer delegate) {
+            return request -> {
+                if (delegate != null)
+                    delegate.initialize(request);
+                request.getHeaders().setAcceptEncoding("gzip");
+
+                final HttpExecuteInterceptor previous = request.getInterceptor(); // credential refresh
+                request.setInterceptor(executed -> {
+                    if (previous != null)
+                        previous.intercept(executed);
+                    executing.set(this);
+                });
+            };
+        }
+    }
+
+    // ApacheHttpTransport of google-http-client 1.20 is built on AbstractHttpClient, deprecated since HttpClient 4.3.
+    // Its interceptor list is the only place to see every response. Named in full, import can't be suppressed
+    @SuppressWarnings("deprecation")
+    GmailTransport(ApacheHttpTransport transport) {
+        this.transport = transport;
+
+        final org.apache.http.impl.client.AbstractHttpClient client = (org.apache.http.impl.client.AbstractHttpClient)transport.getHttpClient();
+        client.addRequestInterceptor((request, context) -> {
+            context.setAttribute(METER_ATTRIBUTE, executing.get());
+            executing.remove();
+        });
+        client.addResponseInterceptor((response, context) -> {
+            final HttpEntity entity = response.getEntity();
+            if (entity != null)
+                response.setEntity(new CountingEntity(entity, (Meter)context.getAttribute(METER_ATTRIBUTE)));
+        });
+    }
+
+    static synchronized GmailTransport getShared() throws GeneralSecurityException, IOException {
+        if (shared == null) {
+            final ApacheHttpTransport transport = new ApacheHttpTransport.Builder()
+                    .trustCertificates(GoogleUtils.getCertificateTrustStore())
+                    .build();
+            shared = new GmailTransport(transport);
+        }
+
+        return shared;
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public Meter createMeter() {
+        return new Meter();
+    }
+
+    private class CountingEntity extends HttpEntityWrapper {
+
+        private final Meter meter; // null for untagged requests, counted in total only
+
+        public CountingEntity(HttpEntity wrapped, Meter meter) {
+            super(wrapped);
+            this.meter = meter;
+        }
+
+        private void received(long count) {
+            bytesReceived.addAndGet(count);
+            if (meter != null)
+                meter.bytesReceived.addAndGet(count);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    final int result = super.read();
+                    if (result >= 0)
+                        received(1);
+                    return result;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    final int result = super.read(b, off, len);
+                    if (result > 0)
+                        received(result);
+                    return result;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    final long result = super.skip(n);
+                    received(result);
+                    return result;
+                }
+            };
+        }
+    }
+}
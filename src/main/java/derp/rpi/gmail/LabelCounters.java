@@ -0,0 +1,69 @@
+package derp.rpi.gmail;
+
+import java.util.*;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
+
+// Unread counts of configured labels, updated as cached messages come and go
+class LabelCounters {
+
+    private final String[] labels;
+    private final Map<String, Integer> slots;
+    private final int[] counts;
+
+    private boolean changed = true;
+
+    public LabelCounters(Collection<String> labels) {
+        this.labels = Ordering.natural().sortedCopy(labels).toArray(new String[0]);
+
+        final ImmutableMap.Builder<String, Integer> slots = ImmutableMap.builder();
+        for (int i = 0; i < this.labels.length; i++)
+            slots.put(this.labels[i], i);
+        this.slots = slots.build();
+
+        this.counts = new int[this.labels.length];
+    }
+
+    public void add(List<String> messageLabels) {
+        update(messageLabels, 1);
+    }
+
+    public void remove(List<String> messageLabels) {
+        update(messageLabels, -1);
+    }
+
+    private void update(List<String> messageLabels, int delta) {
+        for (String label : messageLabels) {
+            final Integer slot = slots.get(label);
+            if (slot != null) {
+                counts[slot] += delta;
+                changed = true;
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        changed = true;
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    public String getLabel(int slot) {
+        return labels[slot];
+    }
+
+    public int getCount(int slot) {
+        return counts[slot];
+    }
+
+    // returns whether any count moved since last call
+    public boolean pollChanged() {
+        final boolean result = changed;
+        changed = false;
+        return result;
+    }
+}
@@ -0,0 +1,225 @@
+package derp.rpi.gmail;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Maps;
+
+// Message id -> labels of every counted message, persisted between runs. Size is only warned about,
+// dropping a message that is still unread would take it out of counts and get it fetched again
+class MessageCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageCache.class);
+
+    private static final int MAGIC = 0x4e584743; // NXGC
+    private static final int VERSION = 1;
+
+    static class CachedMessage {
+        public final List<String> labels;
+
+        public CachedMessage(List<String> labels) {
+            this.labels = labels;
+        }
+    }
+
+    private final Interner<String> labelInterner = Interners.newStrongInterner();
+
+    private final Map<String, CachedMessage> entries = Maps.newLinkedHashMap();
+
+    private final int warnSize;
+    private boolean warned;
+
+    private LabelCounters counters;
+
+    private boolean dirty;
+
+    // history id the cached set is complete for, so incremental sync can resume after restart
+    private BigInteger historyId;
+
+    public MessageCache(int warnSize, LabelCounters counters) {
+        Preconditions.checkArgument(warnSize > 0, "Invalid cache size: %s", warnSize);
+        this.warnSize = warnSize;
+        this.counters = counters;
+    }
+
+    // counts cached messages into new label set, nothing is refetched
+    public void setCounters(LabelCounters counters) {
+        this.counters = counters;
+        for (CachedMessage msg : entries.values())
+            counters.add(msg.labels);
+    }
+
+    public CachedMessage get(String id) {
+        return entries.get(id);
+    }
+
+    public boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    public Set<String> ids() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void put(String id, List<String> labels) {
+        final ImmutableList.Builder<String> interned = ImmutableList.builder();
+        for (String label : labels)
+            interned.add(labelInterner.intern(label));
+
+        final CachedMessage msg = new CachedMessage(interned.build());
+        final CachedMessage previous = entries.put(id, msg);
+        if (previous != null)
+            counters.remove(previous.labels);
+        counters.add(msg.labels);
+        dirty = true;
+
+        checkSize();
+    }
+
+    private void checkSize() {
+        if (entries.size() <= warnSize) {
+            warned = false;
+        } else if (!warned) {
+            warned = true;
+            logger.warn("{} unread messages cached, more than maxCachedMessages {}. All are kept, so counts stay right",
+                    entries.size(), warnSize);
+        }
+    }
+
+    public void remove(String id) {
+        final CachedMessage previous = entries.remove(id);
+        if (previous != null) {
+            counters.remove(previous.labels);
+            dirty = true;
+        }
+    }
+
+    public void retainAll(Set<String> ids) {
+        final Iterator<Map.Entry<String, CachedMessage>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, CachedMessage> e = it.next();
+            if (!ids.contains(e.getKey())) {
+                counters.remove(e.getValue().labels);
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    public BigInteger getHistoryId() {
+        return historyId;
+    }
+
+    public void setHistoryId(BigInteger historyId) {
+        if (!Objects.equals(this.historyId, historyId)) {
+            this.historyId = historyId;
+            dirty = true;
+        }
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void save(File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+
+        try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+
+            output.writeBoolean(historyId != null);
+            if (historyId != null)
+                output.writeUTF(historyId.toString());
+
+            // labels are written once and referenced by index
+            final Map<String, Integer> labelIndex = Maps.newHashMap();
+            final List<String> labels = new ArrayList<>();
+            for (CachedMessage msg : entries.values())
+                for (String label : msg.labels)
+                    if (labelIndex.putIfAbsent(label, labels.size()) == null)
+                        labels.add(label);
+
+            output.writeInt(labels.size());
+            for (String label : labels)
+                output.writeUTF(label);
+
+            output.writeInt(entries.size());
+            for (Map.Entry<String, CachedMessage> e : entries.entrySet()) {
+                output.writeUTF(e.getKey());
+                output.writeByte(e.getValue().labels.size());
+                for (String label : e.getValue().labels)
+                    output.writeShort(labelIndex.get(label));
+            }
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    // on failure cache is left empty, a partly read one was never complete
+    public void load(File file) throws IOException {
+        try {
+            read(file);
+        } catch (IOException e) {
+            clear();
+            throw e;
+        } catch (RuntimeException e) {
+            clear();
+            throw new IOException("Corrupt cache in " + file, e);
+        }
+
+        dirty = false;
+        checkSize();
+        logger.info("Loaded {} cached messages from {}", entries.size(), file);
+    }
+
+    private void clear() {
+        for (CachedMessage msg : entries.values())
+            counters.remove(msg.labels);
+        entries.clear();
+        historyId = null;
+        dirty = false;
+    }
+
+    private void read(File file) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readUnsignedByte() != VERSION)
+                throw new IOException("Unknown cache format in " + file);
+
+            final BigInteger historyId = input.readBoolean() ? new BigInteger(input.readUTF()) : null;
+
+            final String[] labels = new String[input.readInt()];
+            for (int i = 0; i < labels.length; i++)
+                labels[i] = labelInterner.intern(input.readUTF());
+
+            final int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                final String id = input.readUTF();
+                final int labelCount = input.readUnsignedByte();
+                final ImmutableList.Builder<String> msgLabels = ImmutableList.builder();
+                for (int l = 0; l < labelCount; l++)
+                    msgLabels.add(labels[input.readUnsignedShort()]);
+                final CachedMessage msg = new CachedMessage(msgLabels.build());
+                entries.put(id, msg);
+                counters.add(msg.labels);
+            }
+
+            this.historyId = historyId;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package derp.rpi.hardware;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+// Precompiled frame + OE level per step, so playback is just two array reads
+public final class Animation {
+
+    private static final double GAMMA = 2.2; // eyes see PWM duty as roughly duty^(1/2.2)
+
+    private final Frame[] frames;
+    private final int[] levels;
+    private final int stepMillis;
+
+    private Animation(Frame[] frames, int[] levels, int stepMillis) {
+        this.frames = frames;
+        this.levels = levels;
+        this.stepMillis = stepMillis;
+    }
+
+    public int length() {
+        return frames.length;
+    }
+
+    public Frame frame(int step) {
+        return frames[step];
+    }
+
+    // brightness for NixieControl.setBrightness
+    public int level(int step) {
+        return levels[step];
+    }
+
+    public int getStepMillis() {
+        return stepMillis;
+    }
+
+    public static Builder builder(int stepMillis) {
+        return new Builder(stepMillis);
+    }
+
+    // perceived brightness 0..1 -> OE level
+    static int toLevel(double brightness) {
+        final double clamped = Math.max(0, Math.min(1, brightness));
+        return (int)Math.round(Math.pow(clamped, GAMMA) * NixieControl.BRIGHTNESS_MAX);
+    }
+
+    public static class Builder {
+        private final int stepMillis;
+
+        private Frame[] frames = new Frame[16];
+        private int[] levels = new int[16];
+        private int length;
+
+        private Builder(int stepMillis) {
+            Preconditions.checkArgument(stepMillis > 0, "Invalid animation step: %s", stepMillis);
+            this.stepMillis = stepMillis;
+        }
+
+        private int steps(int durationMillis) {
+            return Math.max(1, (durationMillis + stepMillis / 2) / stepMillis);
+        }
+
+        private void add(Frame frame, double brightness) {
+            if (length == frames.length) {
+                frames = Arrays.copyOf(frames, length * 2);
+                levels = Arrays.copyOf(levels, length * 2);
+            }
+
+            frames[length] = frame;
+            levels[length] = toLevel(brightness);
+            length++;
+        }
+
+        // linear in perceived brightness, ends exactly at 'to'
+        public Builder fade(Frame frame, double from, double to, int durationMillis) {
+            final int steps = steps(durationMillis);
+            for (int i = 1; i <= steps; i++)
+                add(frame, from + (to - from) * i / steps);
+            return this;
+        }
+
+        public Builder hold(Frame frame, double brightness, int durationMillis) {
+            final int steps = steps(durationMillis);
+            for (int i = 0; i < steps; i++)
+                add(frame, brightness);
+            return this;
+        }
+
+        // fade in, hold, fade out, fits total duration
+        public Builder pulse(Frame frame, int fadeMillis, int durationMillis) {
+            final int fade = Math.min(fadeMillis, durationMillis / 2);
+            fade(frame, 0, 1, fade);
+            if (durationMillis - 2 * fade > 0)
+                hold(frame, 1, durationMillis - 2 * fade);
+            return fade(frame, 1, 0, fade);
+        }
+
+        // whole module shares one OE line, so frames can't be blended; dips through dark instead
+        public Builder crossfade(Frame from, Frame to, int durationMillis) {
+            final int half = durationMillis / 2;
+            fade(from, 1, 0, half);
+            return fade(to, 0, 1, durationMillis - half);
+        }
+
+        public Animation build() {
+            Preconditions.checkState(length > 0, "Empty animation");
+            return new Animation(Arrays.copyOf(frames, length), Arrays.copyOf(levels, length), stepMillis);
+        }
+    }
+}
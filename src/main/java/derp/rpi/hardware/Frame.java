@@ -0,0 +1,122 @@
+package derp.rpi.hardware;
+
+import java.util.BitSet;
+
+import com.google.common.base.Preconditions;
+
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+import derp.rpi.hardware.StateBuilder.Led;
+
+public final class Frame {
+
+    public static final int BITS = 16;
+
+    static final int UPPER_DOT_PIN = 13;
+    static final int LOWER_DOT_PIN = 14;
+
+    private static final int LED_MASKS = 1 << Led.values().length;
+    private static final int DIGIT_SLOTS = Digit.values().length + 1; // slot 0 is blank
+    private static final int DOT_SLOTS = 4;
+
+    // every Color x Digit/blank x dots combination, so no frame is ever built at runtime
+    private static final Frame[] TABLE = new Frame[LED_MASKS * DIGIT_SLOTS * DOT_SLOTS];
+
+    static {
+        for (int ledMask = 0; ledMask < LED_MASKS; ledMask++)
+            for (int digitSlot = 0; digitSlot < DIGIT_SLOTS; digitSlot++)
+                for (int dots = 0; dots < DOT_SLOTS; dots++)
+                    TABLE[index(ledMask, digitSlot, dots)] = new Frame(computeWord(ledMask, digitSlot, dots));
+    }
+
+    public static final Frame BLANK = of(Color.NONE, false, false);
+
+    private final short word;
+
+    private Frame(int word) {
+        this.word = (short)word;
+    }
+
+    public int word() {
+        return word & 0xFFFF;
+    }
+
+    public boolean get(int bit) {
+        return (word & (1 << bit)) != 0;
+    }
+
+    public BitSet toBitSet() {
+        final BitSet state = new BitSet(BITS);
+        for (int i = 0; i < BITS; i++)
+            state.set(i, get(i));
+        return state;
+    }
+
+    public static Frame of(Color color, Digit digit, boolean upperDot, boolean lowerDot) {
+        Preconditions.checkNotNull(digit);
+        return lookup(color.ledMask, digit, upperDot, lowerDot);
+    }
+
+    public static Frame of(Color color, boolean upperDot, boolean lowerDot) {
+        return lookup(color.ledMask, null, upperDot, lowerDot);
+    }
+
+    // inverse of word(), null for words no frame produces
+    public static Frame ofWord(int word) {
+        for (Frame frame : TABLE)
+            if (frame.word() == word)
+                return frame;
+        return null;
+    }
+
+    static Frame lookup(int ledMask, Digit digit, boolean upperDot, boolean lowerDot) {
+        final int digitSlot = digit != null ? digit.ordinal() + 1 : 0;
+        final int dots = (upperDot ? 1 : 0) | (lowerDot ? 2 : 0);
+        return TABLE[index(ledMask, digitSlot, dots)];
+    }
+
+    static int toWord(BitSet state) {
+        int word = 0;
+        for (int i = 0; i < BITS; i++)
+            if (state.get(i))
+                word |= 1 << i;
+        return word;
+    }
+
+    private static int index(int ledMask, int digitSlot, int dots) {
+        return (ledMask * DIGIT_SLOTS + digitSlot) * DOT_SLOTS + dots;
+    }
+
+    private static int computeWord(int ledMask, int digitSlot, int dots) {
+        int word = 0;
+        for (Led led : Led.values())
+            if ((ledMask & led.mask) == 0)
+                word |= 1 << led.pin; // HIGH disables LED
+
+        if (digitSlot > 0)
+            word |= 1 << Digit.values()[digitSlot - 1].pin;
+
+        if ((dots & 1) != 0)
+            word |= 1 << UPPER_DOT_PIN;
+
+        if ((dots & 2) != 0)
+            word |= 1 << LOWER_DOT_PIN;
+
+        return word;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Frame && ((Frame)obj).word == word;
+    }
+
+    @Override
+    public int hashCode() {
+        return word;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Frame[%04x]", word());
+    }
+}
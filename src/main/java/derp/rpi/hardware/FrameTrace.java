@@ -0,0 +1,235 @@
+package derp.rpi.hardware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import com.google.common.base.Preconditions;
+
+// Every tube and OE call of NixieControl as 16 byte records in a memory mapped ring file.
+// Recording is plain stores into the mapping, kernel writes pages back on its own, so display loop never waits for disk
+public class FrameTrace implements AutoCloseable {
+
+    public enum Kind {
+        FRAME, // updateTube / updateTubes, one record per tube
+        LEVEL // setTubeState / setBrightness
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    public static final int ALL_TUBES = 0xff; // tube of a frame broadcast to every tube
+    public static final int NO_STATE = 0xff;
+
+    private static final int MAGIC = 0x4e584654; // NXFT
+    private static final int VERSION = 1;
+
+    // magic, version, capacity, tubes, written count, then state names
+    private static final int HEADER_SIZE = 512;
+    private static final int WRITTEN_OFFSET = 16;
+    private static final int NAMES_OFFSET = 24;
+
+    // nanos, word, tube, level, state, kind, flags, unused
+    public static final int RECORD_SIZE = 16;
+
+    private static final int FLAG_WRITTEN = 1; // call changed hardware, otherwise it was skipped as redundant
+
+    public static final class Record {
+        public final long nanos;
+        public final Kind kind;
+        public final int tube;
+        public final int word; // latched word, last one for LEVEL records
+        public final int level; // OE level after the call
+        public final int state; // NO_STATE when display loop didn't report one
+        public final boolean written;
+
+        private Record(long nanos, Kind kind, int tube, int word, int level, int state, boolean written) {
+            this.nanos = nanos;
+            this.kind = kind;
+            this.tube = tube;
+            this.word = word;
+            this.level = level;
+            this.state = state;
+            this.written = written;
+        }
+
+        public Frame getFrame() {
+            return Frame.ofWord(word);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%14d ns %s tube %s %s level %d state %s%s", nanos, kind,
+                    tube == ALL_TUBES ? "*" : tube, getFrame(), level, state == NO_STATE ? "-" : state, written ? "" : " (skipped)");
+        }
+    }
+
+    // trace read back from file, oldest record first
+    public static final class Contents {
+        public final int tubes;
+        public final List<String> stateNames;
+        public final List<Record> records;
+        public final long lost; // overwritten by ring before file was read
+
+        private Contents(int tubes, List<String> stateNames, List<Record> records, long lost) {
+            this.tubes = tubes;
+            this.stateNames = stateNames;
+            this.records = records;
+            this.lost = lost;
+        }
+
+        public String stateName(int state) {
+            return state < stateNames.size() ? stateNames.get(state) : state == NO_STATE ? "-" : "#" + state;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final LongSupplier clock;
+
+    private final int capacity;
+    private long written;
+    private int next; // ring slot of next record
+
+    private int word;
+    private int level;
+    private int state = NO_STATE;
+
+    public FrameTrace(File file, int capacity, int tubes) throws IOException {
+        this(file, capacity, tubes, System::nanoTime);
+    }
+
+    // file is truncated, a trace covers one run
+    public FrameTrace(File file, int capacity, int tubes, LongSupplier clock) throws IOException {
+        Preconditions.checkArgument(capacity > 0, "Invalid trace capacity: %s", capacity);
+        Preconditions.checkArgument(tubes > 0 && tubes < ALL_TUBES, "Invalid tube count: %s", tubes);
+        this.capacity = capacity;
+        this.clock = clock;
+
+        final long size = HEADER_SIZE + (long)capacity * RECORD_SIZE;
+        Preconditions.checkArgument(size <= Integer.MAX_VALUE, "Trace capacity too large: %s", capacity);
+
+        this.file = new RandomAccessFile(file, "rw");
+        try {
+            this.file.setLength(0);
+            this.file.setLength(size);
+            this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.load(); // fault pages in now rather than on first records
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, tubes);
+        buffer.putLong(WRITTEN_OFFSET, 0);
+    }
+
+    // index in names is state id passed to setState
+    public void setStateNames(List<String> names) {
+        Preconditions.checkArgument(names.size() < NO_STATE, "Too many states: %s", names.size());
+        final ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        header.position(NAMES_OFFSET);
+        header.put((byte)names.size());
+        for (String name : names) {
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            Preconditions.checkArgument(bytes.length < 256 && header.remaining() > bytes.length, "State names don't fit trace header");
+            header.put((byte)bytes.length);
+            header.put(bytes);
+        }
+    }
+
+    public void setState(int state) {
+        this.state = state;
+    }
+
+    void recordFrame(int tube, int word, boolean written) {
+        this.word = word;
+        record(Kind.FRAME, tube, written);
+    }
+
+    void recordLevel(int level, boolean written) {
+        this.level = level;
+        record(Kind.LEVEL, 0, written);
+    }
+
+    private void record(Kind kind, int tube, boolean written) {
+        final int offset = HEADER_SIZE + next * RECORD_SIZE;
+        if (++next == capacity)
+            next = 0;
+
+        buffer.putLong(offset, clock.getAsLong());
+        buffer.putShort(offset + 8, (short)word);
+        buffer.put(offset + 10, (byte)tube);
+        buffer.put(offset + 11, (byte)level);
+        buffer.put(offset + 12, (byte)state);
+        buffer.put(offset + 13, (byte)kind.ordinal());
+        buffer.put(offset + 14, (byte)(written ? FLAG_WRITTEN : 0));
+
+        // count goes last, so a reader of a crashed process never sees a half written record as complete
+        this.written++;
+        buffer.putLong(WRITTEN_OFFSET, this.written);
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    public static Contents read(File file) throws IOException {
+        try (final RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final ByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                throw new IOException("Unknown trace format in " + file);
+
+            final int capacity = buffer.getInt(8);
+            final int tubes = buffer.getInt(12);
+            final long written = buffer.getLong(WRITTEN_OFFSET);
+            if (buffer.limit() < HEADER_SIZE + (long)capacity * RECORD_SIZE)
+                throw new IOException("Truncated trace " + file);
+
+            final List<String> stateNames = new ArrayList<>();
+            buffer.position(NAMES_OFFSET);
+            final int names = buffer.get() & 0xff;
+            for (int i = 0; i < names; i++) {
+                final byte[] bytes = new byte[buffer.get() & 0xff];
+                buffer.get(bytes);
+                stateNames.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+
+            final int count = (int)Math.min(written, capacity);
+            final List<Record> records = new ArrayList<>(count);
+            for (long i = written - count; i < written; i++) {
+                final int offset = HEADER_SIZE + (int)(i % capacity) * RECORD_SIZE;
+                final int kind = buffer.get(offset + 13);
+                if (kind < 0 || kind >= KINDS.length)
+                    throw new IOException("Invalid record " + i + " in " + file);
+
+                records.add(new Record(buffer.getLong(offset), KINDS[kind],
+                        buffer.get(offset + 10) & 0xff, buffer.getShort(offset + 8) & 0xffff,
+                        buffer.get(offset + 11) & 0xff, buffer.get(offset + 12) & 0xff,
+                        (buffer.get(offset + 14) & FLAG_WRITTEN) != 0));
+            }
+
+            return new Contents(tubes, Collections.unmodifiableList(stateNames), Collections.unmodifiableList(records), written - count);
+        }
+    }
+}
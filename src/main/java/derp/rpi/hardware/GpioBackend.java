@@ -0,0 +1,41 @@
+package derp.rpi.hardware;
+
+import org.slf4j.LoggerFactory;
+
+public interface GpioBackend extends AutoCloseable {
+
+    public enum Line {
+        DIN,
+        OE,
+        STCP,
+        SHCP
+    }
+
+    public static final int PWM_RANGE = 255;
+
+    public void write(Line line, boolean high);
+
+    public default boolean hasHardwarePwm() {
+        return false;
+    }
+
+    // level is share of period tube is lit (OE low), 0..PWM_RANGE.
+    // Without hardware PWM OE is held steady, any level above 0 is fully lit like with PWM off
+    public default void writeOutputEnablePwm(int level) {
+        if (level > 0 && level < PWM_RANGE)
+            LoggerFactory.getLogger(GpioBackend.class).debug("No hardware PWM on OE, level {} shown fully lit", level);
+        write(Line.OE, level <= 0); // active LOW
+    }
+
+    public interface ToggleListener {
+        public void onToggleEdge();
+    }
+
+    public boolean readToggle();
+
+    // called on every toggle edge, possibly from backend thread and with bounces
+    public void setToggleListener(ToggleListener listener);
+
+    @Override
+    public void close();
+}
@@ -0,0 +1,159 @@
+package derp.rpi.hardware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+import com.pi4j.io.gpio.Pin;
+
+// Drives the BCM2835 GPIO block directly through a /dev/gpiomem mapping
+public class MappedGpioBackend implements GpioBackend {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final int GPFSEL0 = 0x00;
+    private static final int GPSET0 = 0x1c;
+    private static final int GPCLR0 = 0x28;
+    private static final int GPLEV0 = 0x34;
+    private static final int GPPUD = 0x94;
+    private static final int GPPUDCLK0 = 0x98;
+
+    private static final int FSEL_INPUT = 0b000;
+    private static final int FSEL_OUTPUT = 0b001;
+
+    private static final int PUD_OFF = 0b00;
+    private static final int PUD_UP = 0b10;
+
+    private static final long PUD_SETUP_NANOS = 10_000; // datasheet asks for 150 cycles
+
+    // gpiomem has no interrupt delivery, so edges are found by sampling the level register
+    private static final long TOGGLE_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    // WiringPi pin number (as used by Pi4J RaspiPin) -> BCM GPIO number, board revision 2 and later
+    private static final int[] WIRING_PI_TO_BCM = {
+            17, 18, 27, 22, 23, 24, 25, 4,
+            2, 3, 8, 7, 10, 9, 11, 14,
+            15, 28, 29, 30, 31, 5, 6, 13,
+            19, 26, 12, 16, 20, 21, 0, 1
+    };
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer registers;
+
+    private final int[] lineMasks = new int[Line.values().length];
+    private final int toggleMask;
+
+    private volatile ToggleListener toggleListener;
+    private Thread toggleSampler;
+
+    public MappedGpioBackend(File device, NixieControl.Config pins) throws IOException {
+        this.file = new RandomAccessFile(device, "rw");
+        try {
+            this.registers = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, BLOCK_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        registers.order(ByteOrder.LITTLE_ENDIAN);
+
+        configureOutput(Line.DIN, toBcm(pins.din));
+        configureOutput(Line.OE, toBcm(pins.oe));
+        configureOutput(Line.STCP, toBcm(pins.stcp));
+        configureOutput(Line.SHCP, toBcm(pins.shcp));
+
+        final int toggle = toBcm(pins.toggle);
+        setFunction(toggle, FSEL_INPUT);
+        this.toggleMask = 1 << toggle;
+        setPullUp(toggleMask);
+    }
+
+    static int toBcm(String pinName) {
+        final Pin pin = NixieControl.getPin(pinName);
+        final int address = pin.getAddress();
+        Preconditions.checkArgument(address >= 0 && address < WIRING_PI_TO_BCM.length, "Pin %s has no BCM mapping", pinName);
+        return WIRING_PI_TO_BCM[address];
+    }
+
+    private void configureOutput(Line line, int bcm) {
+        setFunction(bcm, FSEL_OUTPUT);
+        lineMasks[line.ordinal()] = 1 << bcm;
+        write(line, false);
+    }
+
+    private void setFunction(int bcm, int function) {
+        final int offset = GPFSEL0 + (bcm / 10) * 4;
+        final int shift = (bcm % 10) * 3;
+        final int value = registers.getInt(offset);
+        registers.putInt(offset, (value & ~(0b111 << shift)) | (function << shift));
+    }
+
+    private void setPullUp(int mask) {
+        registers.putInt(GPPUD, PUD_UP);
+        LockSupport.parkNanos(PUD_SETUP_NANOS);
+        registers.putInt(GPPUDCLK0, mask);
+        LockSupport.parkNanos(PUD_SETUP_NANOS);
+        registers.putInt(GPPUD, PUD_OFF);
+        registers.putInt(GPPUDCLK0, 0);
+    }
+
+    @Override
+    public void write(Line line, boolean high) {
+        registers.putInt(high ? GPSET0 : GPCLR0, lineMasks[line.ordinal()]);
+    }
+
+    @Override
+    public boolean readToggle() {
+        return (registers.getInt(GPLEV0) & toggleMask) != 0;
+    }
+
+    @Override
+    public synchronized void setToggleListener(ToggleListener listener) {
+        this.toggleListener = listener;
+
+        if (listener != null && toggleSampler == null) {
+            toggleSampler = new Thread(this::sampleToggle, "toggle-sampler");
+            toggleSampler.setDaemon(true);
+            toggleSampler.start();
+        }
+    }
+
+    private void sampleToggle() {
+        boolean previous = readToggle();
+        while (!Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(TOGGLE_SAMPLE_NANOS);
+
+            final boolean current = readToggle();
+            final ToggleListener listener = toggleListener;
+            if (current != previous && listener != null)
+                listener.onToggleEdge();
+            previous = current;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (toggleSampler != null) {
+                toggleSampler.interrupt();
+                toggleSampler = null;
+            }
+        }
+
+        write(Line.OE, true); // active LOW, blank tube
+        write(Line.DIN, false);
+        write(Line.STCP, false);
+        write(Line.SHCP, false);
+
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close GPIO mapping", e);
+        }
+    }
+}
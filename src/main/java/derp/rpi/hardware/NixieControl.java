@@ -1,83 +1,354 @@
 package derp.rpi.hardware;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.pi4j.io.gpio.*;
 
+import derp.rpi.hardware.GpioBackend.Line;
+import derp.rpi.metrics.Counter;
+import derp.rpi.metrics.LatencyHistogram;
+import derp.rpi.metrics.Metrics;
+
 public class NixieControl implements AutoCloseable {
 
+    public enum Backend {
+        PI4J,
+        MAPPED,
+        SIMULATED
+    }
+
+    public enum PwmMode {
+        OFF, // OE only switched fully on or off
+        SOFTWARE,
+        HARDWARE,
+        AUTO // hardware when OE pin and backend support it, software otherwise
+    }
+
     public static class Config {
         public String din = RaspiPin.GPIO_00.getName();
         public String oe = RaspiPin.GPIO_01.getName();
         public String stcp = RaspiPin.GPIO_02.getName();
         public String shcp = RaspiPin.GPIO_03.getName();
         public String toggle = RaspiPin.GPIO_04.getName();
+
+        public int tubes = 1; // modules daisy-chained on DIN
+
+        public int switchDebounce = 20;
+
+        public Backend backend = Backend.PI4J;
+        public String gpiomem = "/dev/gpiomem";
+
+        public PwmMode pwm = PwmMode.AUTO;
+        public int pwmFrequency = 200; // software PWM only
+        public int brightness = BRIGHTNESS_MAX; // full scale of setBrightness
     }
 
-    private final GpioController gpio = GpioFactory.getInstance();
+    public static final int BRIGHTNESS_MAX = GpioBackend.PWM_RANGE;
+
+    private static final Logger logger = LoggerFactory.getLogger(NixieControl.class);
 
-    private final GpioPinDigitalOutput din;
-    private final GpioPinDigitalOutput oe;
-    private final GpioPinDigitalOutput stcp;
-    private final GpioPinDigitalOutput shcp;
+    private static final int UNKNOWN = -1;
 
-    private final GpioPinDigitalInput sw;
+    public interface SwitchListener {
+        public void onSwitch(boolean on);
+    }
+
+    private final GpioBackend backend;
+
+    private final int tubes;
 
     private boolean initialized;
 
-    private static Pin getPin(String name) {
+    // last state pushed to hardware, UNKNOWN until first write
+    private final int[] latchedWords;
+    private int outputEnable = UNKNOWN; // last PWM level written to OE
+    private int brightness = UNKNOWN; // last requested, before scaling
+
+    private int maxBrightness;
+    private final boolean hardwarePwm;
+    private final SoftwarePwm softwarePwm; // null when PWM is off or done in hardware
+
+    private final Counter issuedWrites = new Counter();
+    private final Counter skippedWrites = new Counter();
+    private final LatencyHistogram updateLatency = new LatencyHistogram();
+
+    private FrameTrace trace; // null unless tracing
+
+    private final int switchDebounce;
+    private final ScheduledExecutorService debouncer;
+    private final List<SwitchListener> switchListeners = new CopyOnWriteArrayList<>();
+    private ScheduledFuture<?> pendingSwitchCheck;
+    private volatile boolean switchOn;
+
+    static Pin getPin(String name) {
         final Pin pin = RaspiPin.getPinByName(name);
         Preconditions.checkArgument(pin != null, "Invalid pin: %s", name);
         return pin;
     }
 
-    public NixieControl(Config pins) {
-        this.din = gpio.provisionDigitalOutputPin(getPin(pins.din), "DIN", PinState.LOW);
-        this.din.setShutdownOptions(true, PinState.LOW);
+    private static GpioBackend createBackend(Config config) {
+        switch (config.backend) {
+            case PI4J:
+                return new Pi4jGpioBackend(config);
+            case MAPPED:
+                try {
+                    return new MappedGpioBackend(new File(config.gpiomem), config);
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to map GPIO registers from " + config.gpiomem, e);
+                }
+            case SIMULATED:
+                return new SimulatedGpioBackend(config.tubes);
+            default:
+                throw new IllegalArgumentException("Unknown GPIO backend: " + config.backend);
+        }
+    }
+
+    public NixieControl(Config config) {
+        this(createBackend(config), config);
+    }
+
+    public NixieControl(GpioBackend backend, int tubes, int switchDebounce) {
+        this(backend, withTubes(tubes, switchDebounce));
+    }
 
-        this.oe = gpio.provisionDigitalOutputPin(getPin(pins.oe), "OE", PinState.LOW);
-        this.oe.setShutdownOptions(true, PinState.HIGH);
+    private static Config withTubes(int tubes, int switchDebounce) {
+        final Config config = new Config();
+        config.tubes = tubes;
+        config.switchDebounce = switchDebounce;
+        return config;
+    }
+
+    public NixieControl(GpioBackend backend, Config config) {
+        final int tubes = config.tubes;
+        final int switchDebounce = config.switchDebounce;
+        Preconditions.checkArgument(tubes > 0, "Invalid tube count: %s", tubes);
+        checkBrightness(config.brightness);
+        this.backend = backend;
+        this.tubes = tubes;
+        this.latchedWords = new int[tubes];
+        Arrays.fill(latchedWords, UNKNOWN);
 
-        this.stcp = gpio.provisionDigitalOutputPin(getPin(pins.stcp), "STCP", PinState.LOW);
-        this.stcp.setShutdownOptions(true, PinState.LOW);
+        this.maxBrightness = config.brightness;
+        this.hardwarePwm = config.pwm != PwmMode.OFF && config.pwm != PwmMode.SOFTWARE && backend.hasHardwarePwm();
+        this.softwarePwm = config.pwm != PwmMode.OFF && !hardwarePwm ? new SoftwarePwm(backend, config.pwmFrequency) : null;
 
-        this.shcp = gpio.provisionDigitalOutputPin(getPin(pins.shcp), "SHCP", PinState.LOW);
-        this.shcp.setShutdownOptions(true, PinState.LOW);
+        this.switchDebounce = switchDebounce;
+        this.debouncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "switch-debounce");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.switchOn = !backend.readToggle();
+        backend.setToggleListener(this::onToggleEdge);
 
-        this.sw = gpio.provisionDigitalInputPin(getPin(pins.toggle), PinPullResistance.PULL_UP);
-        this.sw.setShutdownOptions(true);
+        Metrics.register("gpio.writes.issued", issuedWrites);
+        Metrics.register("gpio.writes.skipped", skippedWrites);
+        Metrics.register("gpio.update", updateLatency);
 
         this.initialized = true;
     }
 
+    public NixieControl(GpioBackend backend) {
+        this(backend, 1, 0);
+    }
+
     @Override
     public void close() {
         if (initialized) {
-            gpio.shutdown();
+            logger.info("Tube writes issued: {}, skipped: {}", issuedWrites, skippedWrites);
+            backend.setToggleListener(null);
+            debouncer.shutdownNow();
+            if (softwarePwm != null)
+                softwarePwm.close();
+            backend.close();
             initialized = false;
         }
     }
 
+    public int getTubeCount() {
+        return tubes;
+    }
+
+    // records every tube and OE call from now on, null stops. Owner closes the trace
+    public void setTrace(FrameTrace trace) {
+        this.trace = trace;
+    }
+
+    public FrameTrace getTrace() {
+        return trace;
+    }
+
     public void updateTube(BitSet state) {
+        broadcast(Frame.toWord(state));
+    }
+
+    // shows the same frame on every tube
+    public void updateTube(Frame frame) {
+        broadcast(frame.word());
+    }
+
+    // frames[0] goes to the module wired directly to DIN
+    public void updateTubes(Frame[] frames) {
         Preconditions.checkState(initialized, "GPIO not initialized");
+        Preconditions.checkArgument(frames.length == tubes, "Frame count does not match tube count");
+
+        boolean changed = false;
+        for (int tube = 0; tube < tubes; tube++)
+            changed |= frames[tube].word() != latchedWords[tube];
+
+        if (trace != null)
+            for (int tube = 0; tube < tubes; tube++)
+                trace.recordFrame(tube, frames[tube].word(), changed);
+
+        if (!changed) {
+            skippedWrites.inc();
+            return;
+        }
+
+        final long start = System.nanoTime();
 
-        for (int i = 0; i < 16; i++) {
-            final boolean bitState = state.get(i);
-            din.setState(bitState);
-            shcp.high();
-            shcp.low();
+        // farthest module first, single latch for the whole chain
+        for (int tube = tubes - 1; tube >= 0; tube--) {
+            final int word = frames[tube].word();
+            shiftOut(word);
+            latchedWords[tube] = word;
         }
 
-        stcp.high();
-        stcp.low();
+        latch();
+        updateLatency.recordSince(start);
+    }
+
+    private void broadcast(int word) {
+        Preconditions.checkState(initialized, "GPIO not initialized");
+
+        boolean changed = false;
+        for (int tube = 0; tube < tubes; tube++)
+            changed |= word != latchedWords[tube];
+
+        if (trace != null)
+            trace.recordFrame(FrameTrace.ALL_TUBES, word, changed);
+
+        if (!changed) {
+            skippedWrites.inc();
+            return;
+        }
+
+        final long start = System.nanoTime();
+
+        for (int tube = 0; tube < tubes; tube++) {
+            shiftOut(word);
+            latchedWords[tube] = word;
+        }
+
+        latch();
+        updateLatency.recordSince(start);
+    }
+
+    private void shiftOut(int word) {
+        for (int i = 0; i < Frame.BITS; i++) {
+            final boolean bitState = (word & (1 << i)) != 0;
+            backend.write(Line.DIN, bitState);
+            backend.write(Line.SHCP, true);
+            backend.write(Line.SHCP, false);
+        }
+    }
+
+    private void latch() {
+        backend.write(Line.STCP, true);
+        backend.write(Line.STCP, false);
+
+        issuedWrites.inc();
+    }
+
+    public static void checkBrightness(int brightness) {
+        Preconditions.checkArgument(brightness >= 0 && brightness <= BRIGHTNESS_MAX, "Invalid brightness: %s", brightness);
+    }
+
+    // rescales current level too, so a reloaded brightness shows immediately
+    public void setMaxBrightness(int maxBrightness) {
+        checkBrightness(maxBrightness);
+        if (maxBrightness == this.maxBrightness)
+            return;
+
+        this.maxBrightness = maxBrightness;
+        if (brightness != UNKNOWN)
+            setBrightness(brightness);
     }
 
     public void setTubeState(boolean state) {
-        oe.setState(!state); // active LOW
+        setBrightness(state ? BRIGHTNESS_MAX : 0);
+    }
+
+    // 0..BRIGHTNESS_MAX, scaled by configured brightness
+    public void setBrightness(int brightness) {
+        this.brightness = brightness;
+        final int level = brightness * maxBrightness / BRIGHTNESS_MAX;
+        if (trace != null)
+            trace.recordLevel(level, level != outputEnable);
+
+        if (level == outputEnable) {
+            skippedWrites.inc();
+            return;
+        }
+
+        if (hardwarePwm)
+            backend.writeOutputEnablePwm(level);
+        else if (softwarePwm != null)
+            softwarePwm.setLevel(level);
+        else
+            backend.write(Line.OE, level == 0); // active LOW
+
+        outputEnable = level;
+        issuedWrites.inc();
+    }
+
+    public long getIssuedWrites() {
+        return issuedWrites.get();
+    }
+
+    public long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    // restarts debounce window on every edge, state is committed once the level settles
+    private synchronized void onToggleEdge() {
+        if (switchDebounce == 0) {
+            checkSwitch(); // on caller's thread, keeps simulations deterministic
+            return;
+        }
+
+        if (pendingSwitchCheck != null)
+            pendingSwitchCheck.cancel(false);
+
+        pendingSwitchCheck = debouncer.schedule(this::checkSwitch, switchDebounce, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkSwitch() {
+        final boolean on = !backend.readToggle(); // active LOW
+        if (on == switchOn)
+            return;
+
+        switchOn = on;
+        logger.debug("Switch turned {}", on ? "on" : "off");
+
+        for (SwitchListener listener : switchListeners)
+            listener.onSwitch(on);
+    }
+
+    public void addSwitchListener(SwitchListener listener) {
+        switchListeners.add(listener);
     }
 
     public boolean isSwitchOn() {
-        return sw.getState().isLow();
+        return switchOn;
     }
 }
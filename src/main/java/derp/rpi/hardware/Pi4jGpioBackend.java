@@ -0,0 +1,100 @@
+package derp.rpi.hardware;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.pi4j.io.gpio.*;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+import com.pi4j.wiringpi.Gpio;
+
+public class Pi4jGpioBackend implements GpioBackend {
+
+    // 19.2 MHz / 16 / 255 ~ 4.7 kHz, well above visible flicker
+    private static final int PWM_CLOCK_DIVISOR = 16;
+
+    private final GpioController gpio = GpioFactory.getInstance();
+
+    private final Map<Line, GpioPinDigitalOutput> outputs = new EnumMap<>(Line.class);
+
+    private final GpioPinDigitalInput sw;
+
+    // set when OE sits on PWM capable pin (GPIO_01 / BCM 18) and PWM is enabled
+    private final GpioPinPwmOutput oePwm;
+
+    private GpioPinListenerDigital toggleListener;
+
+    public Pi4jGpioBackend(NixieControl.Config pins) {
+        provision(Line.DIN, pins.din, "DIN", PinState.LOW);
+
+        final Pin oe = NixieControl.getPin(pins.oe);
+        final boolean pwmCapable = oe.getSupportedPinModes().contains(PinMode.PWM_OUTPUT);
+        Preconditions.checkArgument(pins.pwm != NixieControl.PwmMode.HARDWARE || pwmCapable, "Pin %s has no hardware PWM", pins.oe);
+
+        if (pwmCapable && (pins.pwm == NixieControl.PwmMode.HARDWARE || pins.pwm == NixieControl.PwmMode.AUTO)) {
+            this.oePwm = gpio.provisionPwmOutputPin(oe, "OE", PWM_RANGE);
+            Gpio.pwmSetMode(Gpio.PWM_MODE_MS);
+            Gpio.pwmSetRange(PWM_RANGE);
+            Gpio.pwmSetClock(PWM_CLOCK_DIVISOR);
+            oePwm.setPwm(PWM_RANGE); // blank until first update
+        } else {
+            this.oePwm = null;
+            provision(Line.OE, pins.oe, "OE", PinState.HIGH);
+        }
+
+        provision(Line.STCP, pins.stcp, "STCP", PinState.LOW);
+        provision(Line.SHCP, pins.shcp, "SHCP", PinState.LOW);
+
+        this.sw = gpio.provisionDigitalInputPin(NixieControl.getPin(pins.toggle), PinPullResistance.PULL_UP);
+        this.sw.setShutdownOptions(true);
+    }
+
+    private void provision(Line line, String name, String label, PinState shutdownState) {
+        final GpioPinDigitalOutput pin = gpio.provisionDigitalOutputPin(NixieControl.getPin(name), label, PinState.LOW);
+        pin.setShutdownOptions(true, shutdownState);
+        outputs.put(line, pin);
+    }
+
+    @Override
+    public void write(Line line, boolean high) {
+        if (line == Line.OE && oePwm != null)
+            oePwm.setPwm(high ? PWM_RANGE : 0);
+        else
+            outputs.get(line).setState(high);
+    }
+
+    @Override
+    public boolean hasHardwarePwm() {
+        return oePwm != null;
+    }
+
+    @Override
+    public void writeOutputEnablePwm(int level) {
+        oePwm.setPwm(PWM_RANGE - level); // active LOW
+    }
+
+    @Override
+    public boolean readToggle() {
+        return sw.getState().isHigh();
+    }
+
+    @Override
+    public void setToggleListener(ToggleListener listener) {
+        if (toggleListener != null)
+            sw.removeListener(toggleListener);
+
+        if (listener != null) {
+            toggleListener = e -> listener.onToggleEdge();
+            sw.addListener(toggleListener);
+        } else {
+            toggleListener = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (oePwm != null)
+            oePwm.setPwm(PWM_RANGE); // PWM pins ignore shutdown state
+        gpio.shutdown();
+    }
+}
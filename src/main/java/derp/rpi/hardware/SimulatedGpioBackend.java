@@ -0,0 +1,97 @@
+package derp.rpi.hardware;
+
+public class SimulatedGpioBackend implements GpioBackend {
+
+    private final boolean[] levels = new boolean[Line.values().length];
+
+    // index 0 is the module wired directly to DIN
+    private final int[] shiftRegisters;
+    private final int[] latched;
+
+    private long writes;
+
+    private volatile boolean toggle; // LOW means switch is on
+
+    private volatile ToggleListener toggleListener;
+
+    public SimulatedGpioBackend(int tubes) {
+        this.shiftRegisters = new int[tubes];
+        this.latched = new int[tubes];
+    }
+
+    public SimulatedGpioBackend() {
+        this(1);
+    }
+
+    @Override
+    public void write(Line line, boolean high) {
+        writes++;
+
+        final boolean rising = high && !levels[line.ordinal()];
+        levels[line.ordinal()] = high;
+
+        if (!rising)
+            return;
+
+        switch (line) {
+            case SHCP: {
+                boolean carry = levels[Line.DIN.ordinal()];
+                for (int tube = 0; tube < shiftRegisters.length; tube++) {
+                    final int register = shiftRegisters[tube];
+                    shiftRegisters[tube] = (register >>> 1) | (carry ? 1 << (Frame.BITS - 1) : 0);
+                    carry = (register & 1) != 0;
+                }
+                break;
+            }
+            case STCP:
+                System.arraycopy(shiftRegisters, 0, latched, 0, latched.length);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public boolean readToggle() {
+        return toggle;
+    }
+
+    @Override
+    public void setToggleListener(ToggleListener listener) {
+        this.toggleListener = listener;
+    }
+
+    public void setToggle(boolean high) {
+        final boolean changed = toggle != high;
+        this.toggle = high;
+
+        final ToggleListener listener = toggleListener;
+        if (changed && listener != null)
+            listener.onToggleEdge();
+    }
+
+    public boolean getLevel(Line line) {
+        return levels[line.ordinal()];
+    }
+
+    public int getLatchedWord(int tube) {
+        return latched[tube];
+    }
+
+    public int getLatchedWord() {
+        return getLatchedWord(0);
+    }
+
+    public boolean isOutputEnabled() {
+        return !levels[Line.OE.ordinal()]; // active LOW
+    }
+
+    public long getWriteCount() {
+        return writes;
+    }
+
+    @Override
+    public void close() {
+        levels[Line.OE.ordinal()] = true;
+    }
+}
@@ -0,0 +1,100 @@
+package derp.rpi.hardware;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import derp.rpi.hardware.GpioBackend.Line;
+
+// Pulses OE from a dedicated thread. Fully on and fully off levels are plain writes and leave the thread parked
+class SoftwarePwm {
+
+    private final GpioBackend backend;
+
+    private final long periodNanos;
+
+    private volatile int level;
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    SoftwarePwm(GpioBackend backend, int frequency) {
+        this.backend = backend;
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / frequency;
+    }
+
+    // level is share of period the tube is lit, 0..PWM_RANGE
+    public synchronized void setLevel(int level) {
+        this.level = level;
+
+        if (thread == null) {
+            if (isSteady(level)) {
+                writeSteady(level);
+                return;
+            }
+
+            // only started once something is actually dimmed
+            running = true;
+            thread = new Thread(this::run, "oe-pwm");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        } else {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static boolean isSteady(int level) {
+        return level <= 0 || level >= GpioBackend.PWM_RANGE;
+    }
+
+    private void writeSteady(int level) {
+        backend.write(Line.OE, level <= 0); // active LOW
+    }
+
+    private void run() {
+        long deadline = System.nanoTime();
+        while (running) {
+            final int level = this.level;
+            if (isSteady(level)) {
+                writeSteady(level);
+                LockSupport.park(this);
+                deadline = System.nanoTime();
+                continue;
+            }
+
+            final long lit = periodNanos * level / GpioBackend.PWM_RANGE;
+
+            if (System.nanoTime() - deadline > periodNanos)
+                deadline = System.nanoTime(); // fell behind, don't burst to catch up
+
+            // absolute deadlines, so wakeup latency doesn't skew duty cycle over time
+            backend.write(Line.OE, false);
+            deadline += lit;
+            parkUntil(deadline);
+
+            backend.write(Line.OE, true);
+            deadline += periodNanos - lit;
+            parkUntil(deadline);
+        }
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(remaining);
+    }
+
+    public synchronized void close() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.NANOSECONDS.toMillis(periodNanos) * 2 + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+}
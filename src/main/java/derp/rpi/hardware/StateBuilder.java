@@ -2,10 +2,6 @@ package derp.rpi.hardware;
 
 import java.util.BitSet;
 import java.util.Optional;
-import java.util.Set;
-
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
 
 public class StateBuilder {
 
@@ -14,14 +10,12 @@ public class StateBuilder {
         GREEN(2),
         BLUE(0);
 
-        private final int pin;
+        final int pin;
+        final int mask;
 
         private Led(int pin) {
             this.pin = pin;
-        }
-
-        private void set(BitSet state, boolean value) {
-            state.set(pin, !value); // HIGH disables LED
+            this.mask = 1 << ordinal();
         }
     }
 
@@ -38,10 +32,13 @@ public class StateBuilder {
 
         WHITE(Led.RED, Led.GREEN, Led.BLUE);
 
-        private final Set<Led> components;
+        final int ledMask;
 
         private Color(Led... components) {
-            this.components = ImmutableSet.copyOf(components);
+            int ledMask = 0;
+            for (Led led : components)
+                ledMask |= led.mask;
+            this.ledMask = ledMask;
         }
 
     }
@@ -58,14 +55,16 @@ public class StateBuilder {
         D8(10),
         D9(11);
 
-        private final int pin;
+        final int pin;
 
         private Digit(int pin) {
             this.pin = pin;
         }
 
-        private void set(BitSet state) {
-            state.set(pin);
+        private static final Digit[] VALUES = values();
+
+        public static Digit of(int value) {
+            return VALUES[value];
         }
     }
 
@@ -74,7 +73,7 @@ public class StateBuilder {
     private boolean upperDot;
     private boolean lowerDot;
 
-    private Set<Led> leds = Sets.newHashSet();
+    private int ledMask;
 
     public StateBuilder setDigit(Optional<Digit> digit) {
         this.digit = digit;
@@ -92,31 +91,25 @@ public class StateBuilder {
     }
 
     public StateBuilder ledOn(Led color) {
-        leds.add(color);
+        ledMask |= color.mask;
         return this;
     }
 
     public StateBuilder ledOff(Led color) {
-        leds.remove(color);
+        ledMask &= ~color.mask;
         return this;
     }
 
     public StateBuilder setColor(Color color) {
-        leds.clear();
-        leds.addAll(color.components);
+        ledMask = color.ledMask;
         return this;
     }
 
-    public BitSet bakeBits() {
-        final BitSet state = new BitSet(16);
-        for (Led led : Led.values())
-            led.set(state, leds.contains(led));
-
-        digit.ifPresent(d -> d.set(state));
-
-        state.set(13, upperDot);
-        state.set(14, lowerDot);
+    public Frame bake() {
+        return Frame.lookup(ledMask, digit.orElse(null), upperDot, lowerDot);
+    }
 
-        return state;
+    public BitSet bakeBits() {
+        return bake().toBitSet();
     }
 }
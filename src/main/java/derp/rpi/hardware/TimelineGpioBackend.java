@@ -0,0 +1,129 @@
+package derp.rpi.hardware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+// Simulated backend that records every latched frame and OE level change with clock time, for asserting on timelines.
+// Claims hardware PWM, so brightness shows up as plain levels instead of a pulse train
+public class TimelineGpioBackend extends SimulatedGpioBackend {
+
+    public enum Kind {
+        FRAME, // value is word latched into tube
+        LEVEL // value is OE level, 0 is dark and PWM_RANGE fully lit
+    }
+
+    public static final class Event {
+        public final long nanos;
+        public final Kind kind;
+        public final int tube; // 0 for LEVEL
+        public final int value;
+
+        private Event(long nanos, Kind kind, int tube, int value) {
+            this.nanos = nanos;
+            this.kind = kind;
+            this.tube = tube;
+            this.value = value;
+        }
+
+        public long getMillis() {
+            return nanos / 1_000_000;
+        }
+
+        public Frame getFrame() {
+            return kind == Kind.FRAME ? Frame.ofWord(value) : null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%10d ms %s", getMillis(),
+                    kind == Kind.FRAME ? "tube " + tube + " " + getFrame() : "level " + value);
+        }
+    }
+
+    public static final int UNKNOWN = -1;
+
+    private final LongSupplier clock;
+
+    private final int[] frames;
+    private int level = UNKNOWN;
+
+    private final List<Event> events = new ArrayList<>();
+
+    public TimelineGpioBackend(int tubes, LongSupplier clock) {
+        super(tubes);
+        this.clock = clock;
+        this.frames = new int[tubes];
+        Arrays.fill(frames, UNKNOWN);
+    }
+
+    @Override
+    public void write(Line line, boolean high) {
+        final boolean latching = line == Line.STCP && high && !getLevel(Line.STCP);
+        super.write(line, high);
+
+        if (latching) {
+            for (int tube = 0; tube < frames.length; tube++) {
+                final int word = getLatchedWord(tube);
+                if (word != frames[tube]) {
+                    frames[tube] = word;
+                    events.add(new Event(clock.getAsLong(), Kind.FRAME, tube, word));
+                }
+            }
+        } else if (line == Line.OE) {
+            recordLevel(high ? 0 : PWM_RANGE); // active LOW
+        }
+    }
+
+    @Override
+    public boolean hasHardwarePwm() {
+        return true;
+    }
+
+    @Override
+    public void writeOutputEnablePwm(int level) {
+        super.write(Line.OE, level == 0);
+        recordLevel(level);
+    }
+
+    private void recordLevel(int level) {
+        if (level != this.level) {
+            this.level = level;
+            events.add(new Event(clock.getAsLong(), Kind.LEVEL, 0, level));
+        }
+    }
+
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(events);
+    }
+
+    public void clearEvents() {
+        events.clear();
+    }
+
+    // frame latched into tube at given time, null before first latch
+    public Frame frameAt(long nanos, int tube) {
+        Frame result = null;
+        for (Event event : events) {
+            if (event.nanos > nanos)
+                break;
+            if (event.kind == Kind.FRAME && event.tube == tube)
+                result = event.getFrame();
+        }
+        return result;
+    }
+
+    // OE level at given time, UNKNOWN before first write
+    public int levelAt(long nanos) {
+        int result = UNKNOWN;
+        for (Event event : events) {
+            if (event.nanos > nanos)
+                break;
+            if (event.kind == Kind.LEVEL)
+                result = event.value;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,131 @@
+package derp.rpi.hardware;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import derp.rpi.hardware.FrameTrace.Contents;
+import derp.rpi.hardware.FrameTrace.Kind;
+import derp.rpi.hardware.FrameTrace.Record;
+import derp.rpi.metrics.LatencyHistogram;
+
+// Reads a FrameTrace after the fact: timing statistics per display state, or replay through a simulated NixieControl
+public class TraceReplay {
+
+    private final Contents trace;
+
+    public TraceReplay(Contents trace) {
+        this.trace = trace;
+    }
+
+    // interval between frame calls is the display tick, its spread within one state is loop jitter.
+    // Intervals spanning a state change are left out, they mix two tick periods
+    public void printStats() {
+        System.out.printf("%d records, %d lost to ring wrap%n", trace.records.size(), trace.lost);
+        if (trace.records.isEmpty())
+            return;
+
+        final long first = trace.records.get(0).nanos;
+        final long last = trace.records.get(trace.records.size() - 1).nanos;
+        System.out.printf("Span: %d ms%n", TimeUnit.NANOSECONDS.toMillis(last - first));
+
+        final Map<String, LatencyHistogram> intervals = new TreeMap<>();
+        final Map<String, Long> stateNanos = new TreeMap<>();
+        long frames = 0, frameWrites = 0, levels = 0, levelWrites = 0;
+        Record previousCall = null;
+        Record previous = null;
+
+        for (Record record : trace.records) {
+            if (previous != null)
+                stateNanos.merge(trace.stateName(previous.state), record.nanos - previous.nanos, Long::sum);
+            previous = record;
+
+            if (record.kind == Kind.LEVEL) {
+                levels++;
+                if (record.written)
+                    levelWrites++;
+                continue;
+            }
+
+            // updateTubes leaves one record per tube, only first one starts a call
+            if (record.tube != FrameTrace.ALL_TUBES && record.tube != 0)
+                continue;
+
+            frames++;
+            if (record.written)
+                frameWrites++;
+            if (previousCall != null && previousCall.state == record.state)
+                intervals.computeIfAbsent(trace.stateName(record.state), s -> new LatencyHistogram()).record(record.nanos - previousCall.nanos);
+            previousCall = record;
+        }
+
+        System.out.printf("Frame calls: %d, written: %d%n", frames, frameWrites);
+        System.out.printf("Level calls: %d, written: %d%n", levels, levelWrites);
+
+        System.out.println("Time per state:");
+        for (Map.Entry<String, Long> e : stateNanos.entrySet())
+            System.out.printf("  %-22s %10d ms%n", e.getKey(), TimeUnit.NANOSECONDS.toMillis(e.getValue()));
+
+        System.out.println("Frame call interval per state:");
+        for (Map.Entry<String, LatencyHistogram> e : intervals.entrySet())
+            System.out.printf("  %-22s %s%n", e.getKey(), e.getValue());
+    }
+
+    // drives a NixieControl on a recording backend at trace timestamps, returns what hardware would have shown
+    public TimelineGpioBackend replay() {
+        final long[] now = new long[1];
+        final TimelineGpioBackend backend = new TimelineGpioBackend(trace.tubes, () -> now[0]);
+        final NixieControl.Config config = new NixieControl.Config();
+        config.tubes = trace.tubes;
+        config.switchDebounce = 0;
+
+        try (final NixieControl control = new NixieControl(backend, config)) {
+            final Frame[] frames = new Frame[trace.tubes];
+            int nextTube = 0; // ring may start in the middle of an updateTubes call
+
+            for (Record record : trace.records) {
+                now[0] = record.nanos - trace.records.get(0).nanos;
+
+                if (record.kind == Kind.LEVEL) {
+                    control.setBrightness(record.level);
+                } else if (record.tube == FrameTrace.ALL_TUBES) {
+                    control.updateTube(record.getFrame());
+                } else if (record.tube == nextTube) {
+                    frames[nextTube++] = record.getFrame();
+                    if (nextTube == frames.length) {
+                        control.updateTubes(frames);
+                        nextTube = 0;
+                    }
+                } else {
+                    nextTube = 0;
+                }
+            }
+        }
+
+        return backend;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: TraceReplay <trace file> [stats|replay]");
+            System.exit(1);
+        }
+
+        final TraceReplay replay = new TraceReplay(FrameTrace.read(new File(args[0])));
+        final String mode = args.length > 1 ? args[1] : "stats";
+        switch (mode) {
+            case "stats":
+                replay.printStats();
+                break;
+            case "replay":
+                for (TimelineGpioBackend.Event event : replay.replay().getEvents())
+                    System.out.println(event);
+                break;
+            default:
+                System.err.println("Unknown mode: " + mode);
+                System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package derp.rpi.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Counter implements Metric {
+
+    private final AtomicLong value = new AtomicLong();
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    public void collect(String name, Collector collector) {
+        collector.value(name, get());
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,18 @@
+package derp.rpi.metrics;
+
+import java.util.function.LongSupplier;
+
+// value read from owner on collection, nothing recorded
+public class Gauge implements Metric {
+
+    private final LongSupplier supplier;
+
+    public Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public void collect(String name, Collector collector) {
+        collector.value(name, supplier.getAsLong());
+    }
+}
@@ -0,0 +1,92 @@
+package derp.rpi.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Power-of-two buckets, recording never allocates
+public class Histogram implements Metric {
+
+    private static final int BUCKETS = 32; // bucket n counts [2^(n-1), 2^n), bucket 0 counts 0
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordValue(long value) {
+        final long v = Math.max(value, 0);
+        final int bucket = Math.min(64 - Long.numberOfLeadingZeros(v), BUCKETS - 1);
+
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(v);
+
+        long current;
+        while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        final long count = this.count.get();
+        return count > 0 ? total.get() / count : 0;
+    }
+
+    // upper bound of bucket containing given quantile
+    public long getQuantile(double quantile) {
+        final long count = this.count.get();
+        if (count == 0)
+            return 0;
+
+        final long threshold = (long)Math.ceil(count * quantile);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= threshold)
+                return 1L << bucket;
+        }
+
+        return max.get();
+    }
+
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    public int getBucketTotal() {
+        return BUCKETS;
+    }
+
+    protected String unit() {
+        return "";
+    }
+
+    @Override
+    public void collect(String name, Collector collector) {
+        final String suffix = unit().isEmpty() ? "" : "_" + unit();
+        collector.value(name + ".count", getCount());
+        collector.value(name + ".mean" + suffix, getMean());
+        collector.value(name + ".p50" + suffix, getQuantile(0.5));
+        collector.value(name + ".p99" + suffix, getQuantile(0.99));
+        collector.value(name + ".max" + suffix, getMax());
+    }
+
+    @Override
+    public String toString() {
+        final String unit = unit();
+        return String.format("count=%d mean=%d%s p50<%d%s p99<%d%s max=%d%s",
+                getCount(), getMean(), unit, getQuantile(0.5), unit, getQuantile(0.99), unit, getMax(), unit);
+    }
+}
@@ -0,0 +1,21 @@
+package derp.rpi.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+// Histogram of durations in microseconds
+public class LatencyHistogram extends Histogram {
+
+    public void record(long nanos) {
+        recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    // records time elapsed since given System.nanoTime()
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    protected String unit() {
+        return "us";
+    }
+}
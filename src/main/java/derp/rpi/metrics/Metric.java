@@ -0,0 +1,11 @@
+package derp.rpi.metrics;
+
+public interface Metric {
+
+    public interface Collector {
+        public void value(String name, long value);
+    }
+
+    // reports current values, may allocate, never called on recording paths
+    public void collect(String name, Collector collector);
+}
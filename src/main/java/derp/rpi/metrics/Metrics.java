@@ -0,0 +1,107 @@
+package derp.rpi.metrics;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import derp.rpi.ConfigHelper;
+
+// Process-wide registry. Metrics are looked up once by owners and recorded directly afterwards
+public final class Metrics {
+
+    public static class Config {
+        public boolean jmx = true;
+        public String scrapeFile = ""; // relative to home, plain text "name value" lines, empty to disable
+        public int scrapePeriod = 15; // seconds
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+    private static final String OBJECT_NAME = "derp.rpi:type=Metrics";
+
+    private static final ConcurrentMap<String, Metric> registry = new ConcurrentSkipListMap<>();
+
+    private static ScheduledExecutorService scraper;
+
+    private Metrics() {}
+
+    // replaces metric already registered under same name
+    public static <T extends Metric> T register(String name, T metric) {
+        registry.put(name, metric);
+        return metric;
+    }
+
+    public static Counter counter(String name) {
+        return (Counter)registry.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return (Histogram)registry.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    public static LatencyHistogram latency(String name) {
+        return (LatencyHistogram)registry.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public static void gauge(String name, LongSupplier supplier) {
+        register(name, new Gauge(supplier));
+    }
+
+    public static SortedMap<String, Long> collect() {
+        final SortedMap<String, Long> values = Maps.newTreeMap();
+        for (Map.Entry<String, Metric> e : registry.entrySet())
+            e.getValue().collect(e.getKey(), values::put);
+        return values;
+    }
+
+    public static void write(Writer writer) throws IOException {
+        for (Map.Entry<String, Long> e : collect().entrySet())
+            writer.append(e.getKey()).append(' ').append(Long.toString(e.getValue())).append('\n');
+    }
+
+    public static synchronized void start(Config config) {
+        if (config.jmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                logger.warn("Failed to register metrics MBean", e);
+            }
+        }
+
+        final File file = ConfigHelper.resolveHomeFile(config.scrapeFile);
+        if (file != null && scraper == null) {
+            scraper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("metrics-scrape").setDaemon(true).build());
+            scraper.scheduleAtFixedRate(() -> writeScrapeFile(file), config.scrapePeriod, config.scrapePeriod, TimeUnit.SECONDS);
+            logger.info("Writing metrics to {} every {} s", file.getAbsolutePath(), config.scrapePeriod);
+        }
+    }
+
+    // replaced atomically, so readers never see partial file
+    private static void writeScrapeFile(File file) {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                write(writer);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Failed to write metrics to {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package derp.rpi.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.*;
+
+// Exposes every registered metric value as read-only long attribute
+class MetricsMBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final Long value = Metrics.collect().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final SortedMap<String, Long> values = Metrics.collect();
+        final AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            final Long value = values.get(attribute);
+            if (value != null)
+                result.add(new Attribute(attribute, value));
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    // rebuilt on every call, metrics can be registered after startup
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final SortedMap<String, Long> values = Metrics.collect();
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> e : values.entrySet())
+            attributes[i++] = new MBeanAttributeInfo(e.getKey(), "long", e.getKey(), true, false, false);
+
+        return new MBeanInfo(getClass().getName(), "Nixie Notify metrics", attributes, null, null, null);
+    }
+}
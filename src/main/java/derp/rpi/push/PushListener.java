@@ -0,0 +1,299 @@
+package derp.rpi.push;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+import derp.rpi.Notify;
+import derp.rpi.UpdateEngine;
+
+// Accepts pushed notifies over UDP datagrams and TCP lines, see PushParser for format
+public class PushListener implements AutoCloseable {
+
+    public static class Config {
+        public boolean enabled = false;
+
+        public String bindAddress = "127.0.0.1";
+        public int udpPort = 7117; // 0 disables
+        public int tcpPort = 7117; // 0 disables
+
+        public int maxEntries = 32; // oldest pushed id is dropped past that
+        public int maxConnections = 8;
+        public int maxLineLength = 256;
+        public int defaultTtl = 10 * 60; // seconds
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PushListener.class);
+
+    private static final int DATAGRAM_SIZE = 1500;
+
+    private final UpdateEngine.Publisher publisher;
+
+    private final int maxConnections;
+    private final int maxLineLength;
+    private final int defaultTtl;
+
+    private final Selector selector;
+    private final DatagramChannel udp;
+    private final ServerSocketChannel tcp;
+
+    private final ByteBuffer datagram = ByteBuffer.allocate(DATAGRAM_SIZE);
+
+    private final PushParser parser = new PushParser();
+
+    // insertion ordered, bounded by evicting oldest id
+    private final Map<String, Notify> entries;
+
+    private int connections;
+
+    private boolean dirty;
+
+    private long received;
+    private long rejected;
+
+    private Thread thread;
+
+    public PushListener(Config config, UpdateEngine.Publisher publisher) throws IOException {
+        this.publisher = publisher;
+        this.maxConnections = config.maxConnections;
+        this.maxLineLength = config.maxLineLength;
+        this.defaultTtl = config.defaultTtl;
+
+        final int maxEntries = config.maxEntries;
+        this.entries = new LinkedHashMap<String, Notify>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Notify> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        this.selector = Selector.open();
+        this.udp = config.udpPort > 0 ? DatagramChannel.open() : null;
+        this.tcp = config.tcpPort > 0 ? ServerSocketChannel.open() : null;
+        try {
+            if (udp != null) {
+                udp.bind(new InetSocketAddress(config.bindAddress, config.udpPort));
+                udp.configureBlocking(false);
+                udp.register(selector, SelectionKey.OP_READ);
+            }
+
+            if (tcp != null) {
+                tcp.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                tcp.bind(new InetSocketAddress(config.bindAddress, config.tcpPort));
+                tcp.configureBlocking(false);
+                tcp.register(selector, SelectionKey.OP_ACCEPT);
+            }
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+
+        logger.info("Listening for pushed notifies on {} (udp {}, tcp {})", config.bindAddress, config.udpPort, config.tcpPort);
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "push-listener");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.channel() == udp)
+                        receiveDatagrams();
+                    else
+                        receiveLines(key);
+                }
+
+                // whole burst goes out as one snapshot
+                if (dirty) {
+                    dirty = false;
+                    publish();
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Push listener failed", e);
+        } finally {
+            closeChannels();
+        }
+
+        logger.info("Pushed notifies received: {}, rejected: {}", received, rejected);
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel client = tcp.accept();
+        if (client == null)
+            return;
+
+        if (connections >= maxConnections) {
+            logger.debug("Too many push connections, dropping {}", client.getRemoteAddress());
+            client.close();
+            return;
+        }
+
+        client.configureBlocking(false);
+        client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(maxLineLength));
+        connections++;
+    }
+
+    private void receiveDatagrams() throws IOException {
+        while (true) {
+            datagram.clear();
+            if (udp.receive(datagram) == null)
+                return;
+
+            // datagram may carry several lines, last one doesn't need terminator
+            final byte[] data = datagram.array();
+            final int length = datagram.position();
+            int start = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || data[i] == '\n') {
+                    if (i > start)
+                        handleLine(data, start, i - start);
+                    start = i + 1;
+                }
+            }
+        }
+    }
+
+    private void receiveLines(SelectionKey key) {
+        final SocketChannel client = (SocketChannel)key.channel();
+        final ByteBuffer buffer = (ByteBuffer)key.attachment();
+
+        final int read;
+        try {
+            read = client.read(buffer);
+        } catch (IOException e) {
+            logger.debug("Push connection failed", e);
+            disconnect(key);
+            return;
+        }
+
+        final byte[] data = buffer.array();
+        int start = 0;
+        for (int i = 0; i < buffer.position(); i++) {
+            if (data[i] == '\n') {
+                if (i > start)
+                    handleLine(data, start, i - start);
+                start = i + 1;
+            }
+        }
+
+        buffer.limit(buffer.position());
+        buffer.position(start);
+        buffer.compact();
+
+        if (read < 0) {
+            disconnect(key);
+        } else if (!buffer.hasRemaining()) {
+            logger.debug("Push line longer than {} bytes, dropping connection", maxLineLength);
+            rejected++;
+            disconnect(key);
+        }
+    }
+
+    private void disconnect(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.debug("Failed to close push connection", e);
+        }
+        connections--;
+    }
+
+    private void handleLine(byte[] data, int offset, int length) {
+        if (!parser.parse(data, offset, length, defaultTtl)) {
+            rejected++;
+            if (logger.isDebugEnabled())
+                logger.debug("Invalid push line: {}", new String(data, offset, length, StandardCharsets.UTF_8));
+            return;
+        }
+
+        received++;
+
+        if (parser.ttl == 0) {
+            if (entries.remove(parser.id) != null)
+                dirty = true;
+            return;
+        }
+
+        final long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(parser.ttl);
+
+        // keep-alive repeat only moves expiry of shown notify, nothing is republished or saved
+        final Notify existing = entries.get(parser.id);
+        if (existing != null && existing.payload.equals(parser.frame) && existing.priority == parser.priority) {
+            final Notify refreshed = publisher.refresh(existing, expiresAt);
+            if (refreshed != null) {
+                entries.put(parser.id, refreshed);
+                return;
+            }
+        }
+
+        // refreshed id keeps its place in map, so display order stays put
+        entries.put(parser.id, new Notify(parser.id, parser.frame, parser.priority, expiresAt));
+        dirty = true;
+    }
+
+    // expiry itself is handled by store, this only keeps map from holding stale entries
+    private void publish() {
+        final long now = System.currentTimeMillis();
+        entries.values().removeIf(notify -> notify.isExpired(now));
+        publisher.publish(ImmutableList.copyOf(entries.values()));
+    }
+
+    // only called from listener thread, or before it was started
+    private void closeChannels() {
+        if (selector.isOpen())
+            for (SelectionKey key : selector.keys())
+                if (key.attachment() != null)
+                    disconnect(key);
+
+        for (Closeable closeable : Arrays.asList(udp, tcp, selector)) {
+            try {
+                if (closeable != null)
+                    closeable.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close {}", closeable, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (thread != null) {
+            thread.interrupt(); // wakes select, thread closes channels on exit
+            thread = null;
+        } else {
+            closeChannels();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package derp.rpi.push;
+
+import java.nio.charset.StandardCharsets;
+
+import derp.rpi.Notify;
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+
+// Parses "<id> <color> <digit|-> [<upper><lower> dots, 0/1] [<ttl seconds>] [<priority>]", ttl 0 removes id
+// Fields are read straight from receive buffer, only id becomes an object
+class PushParser {
+
+    private static final Color[] COLORS = Color.values();
+
+    private static final int DEFAULT = -1;
+
+    String id;
+    Frame frame;
+    int ttl;
+    int priority;
+
+    private byte[] line;
+    private int pos;
+    private int end;
+
+    boolean parse(byte[] line, int offset, int length, int defaultTtl) {
+        this.line = line;
+        this.pos = offset;
+        this.end = offset + length;
+
+        final int idStart = nextToken();
+        if (idStart < 0)
+            return false;
+        final int idEnd = pos;
+
+        final Color color = parseColor(nextToken());
+        if (color == null)
+            return false;
+
+        final int digitStart = nextToken();
+        if (digitStart < 0 || pos - digitStart != 1)
+            return false;
+        final Digit digit;
+        final byte d = line[digitStart];
+        if (d == '-')
+            digit = null;
+        else if (d >= '0' && d <= '9')
+            digit = Digit.of(d - '0');
+        else
+            return false;
+
+        boolean upper = false;
+        boolean lower = false;
+        final int dotsStart = nextToken();
+        if (dotsStart >= 0) {
+            if (pos - dotsStart != 2 || !isBit(line[dotsStart]) || !isBit(line[dotsStart + 1]))
+                return false;
+            upper = line[dotsStart] == '1';
+            lower = line[dotsStart + 1] == '1';
+        }
+
+        final int ttl = parseNumber(nextToken());
+        if (ttl == DEFAULT - 1)
+            return false;
+
+        final int priority = parseNumber(nextToken());
+        if (priority == DEFAULT - 1 || nextToken() >= 0)
+            return false;
+
+        this.id = new String(line, idStart, idEnd - idStart, StandardCharsets.UTF_8);
+        this.frame = digit != null ? Frame.of(color, digit, upper, lower) : Frame.of(color, upper, lower);
+        this.ttl = ttl == DEFAULT ? defaultTtl : ttl;
+        this.priority = priority == DEFAULT ? Notify.PRIORITY_NORMAL : priority;
+        return true;
+    }
+
+    // returns token start and leaves pos at its end, -1 when line is exhausted
+    private int nextToken() {
+        while (pos < end && isSpace(line[pos]))
+            pos++;
+
+        if (pos == end)
+            return -1;
+
+        final int start = pos;
+        while (pos < end && !isSpace(line[pos]))
+            pos++;
+        return start;
+    }
+
+    private Color parseColor(int start) {
+        if (start < 0)
+            return null;
+
+        for (Color color : COLORS)
+            if (matches(color.name(), start, pos))
+                return color;
+        return null;
+    }
+
+    private boolean matches(String name, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+
+        for (int i = 0; i < name.length(); i++) {
+            final int c = line[start + i] & ~0x20; // ASCII upper case
+            if (c != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    // DEFAULT when missing, DEFAULT - 1 when malformed
+    private int parseNumber(int start) {
+        if (start < 0)
+            return DEFAULT;
+
+        if (pos - start > 9)
+            return DEFAULT - 1;
+
+        int value = 0;
+        for (int i = start; i < pos; i++) {
+            final byte c = line[i];
+            if (c < '0' || c > '9')
+                return DEFAULT - 1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isBit(byte b) {
+        return b == '0' || b == '1';
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
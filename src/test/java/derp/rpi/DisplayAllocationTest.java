@@ -0,0 +1,119 @@
+package derp.rpi;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.NixieControl;
+import derp.rpi.hardware.SimulatedGpioBackend;
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+import derp.rpi.metrics.Metrics;
+
+// Display thread must not allocate once states are warmed up: cycling, heartbeat flashes and their transitions
+public class DisplayAllocationTest {
+
+    private static final int WARMUP_TICKS = 200_000;
+    private static final int MEASURED_TICKS = 100_000;
+    private static final int ROUNDS = 10;
+
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    private final long threadId = Thread.currentThread().getId();
+
+    private final VirtualClock clock = new VirtualClock(0);
+
+    private NixieNotify nixieNotify;
+    private NixieControl control;
+
+    private void start(NixieNotify.Layout layout, Notify... notifies) {
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final NixieNotify.Config config = new NixieNotify.Config();
+        config.layout = layout;
+        config.snapshotFile = "";
+        config.heartbeatPeriod = 3; // flashes every few dozen ticks
+
+        nixieNotify = new NixieNotify(config, clock);
+        nixieNotify.getUpdateEngine().addPushSource("test").publish(ImmutableList.copyOf(notifies));
+
+        control = new NixieControl(new SimulatedGpioBackend(2), 2, 0);
+        nixieNotify.startLoop(control);
+    }
+
+    @After
+    public void tearDown() {
+        if (control != null)
+            control.close();
+        if (nixieNotify != null)
+            nixieNotify.getUpdateEngine().close();
+    }
+
+    // scheduler left out, it logs its lateness histogram every simulated hour
+    private void ticks(int count) {
+        for (int i = 0; i < count; i++)
+            clock.advance(TimeUnit.MILLISECONDS.toNanos(Math.max(1, nixieNotify.tick(control))));
+    }
+
+    private long allocated() {
+        return threads.getThreadAllocatedBytes(threadId);
+    }
+
+    // State must be entered while measuring, so its transitions are covered too. JIT may still recompile or deoptimize
+    // parts of tick after warmup, briefly running them without escape analysis, so best of a few rounds counts.
+    // Tick that allocates does so in every round
+    private long allocatedByTicks(String visitedState) {
+        ticks(WARMUP_TICKS);
+
+        final long overheadStart = allocated();
+        final long overhead = allocated() - overheadStart; // of measuring itself
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS && best > 0; round++) {
+            final long visits = Metrics.counter("display.transitions." + visitedState).get();
+            final long start = allocated();
+            ticks(MEASURED_TICKS);
+            final long result = allocated() - start - overhead;
+
+            assertTrue(visitedState + " not entered while measuring", Metrics.counter("display.transitions." + visitedState).get() > visits);
+            best = Math.min(best, result);
+        }
+
+        return best;
+    }
+
+    private static Notify[] notifies() {
+        return new Notify[] {
+                new Notify("a", Frame.of(Color.RED, Digit.D1, false, false)),
+                new Notify("b", Frame.of(Color.BLUE, Digit.D2, false, false)),
+                new Notify("c", Frame.of(Color.GREEN, Digit.D3, true, false))
+        };
+    }
+
+    @Test
+    public void cycleLayoutDoesNotAllocate() {
+        start(NixieNotify.Layout.CYCLE, notifies());
+        assertEquals(0, allocatedByTicks("StateDisplay"));
+    }
+
+    @Test
+    public void parallelLayoutDoesNotAllocate() {
+        start(NixieNotify.Layout.PARALLEL, notifies());
+        assertEquals(0, allocatedByTicks("StateDisplay"));
+    }
+
+    // heartbeat only flashes while nothing is shown
+    @Test
+    public void heartbeatDoesNotAllocate() {
+        start(NixieNotify.Layout.CYCLE);
+        assertEquals(0, allocatedByTicks("StateAnimation"));
+    }
+}
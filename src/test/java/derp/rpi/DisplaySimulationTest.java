@@ -0,0 +1,198 @@
+package derp.rpi;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.GpioBackend;
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+import derp.rpi.hardware.TimelineGpioBackend;
+import derp.rpi.hardware.TimelineGpioBackend.Event;
+import derp.rpi.hardware.TimelineGpioBackend.Kind;
+
+// Exact frame timelines of the display state machine, run on virtual time from switch-on at 0 ms
+public class DisplaySimulationTest {
+
+    private static final Frame A = Frame.of(Color.RED, Digit.D1, false, false);
+    private static final Frame B = Frame.of(Color.BLUE, Digit.D2, false, false);
+
+    private static final int LIT = GpioBackend.PWM_RANGE;
+    private static final int DARK = 0;
+
+    private final NixieNotify.Config config = new NixieNotify.Config();
+
+    private DisplaySimulation simulation;
+    private TimelineGpioBackend timeline;
+
+    public DisplaySimulationTest() {
+        config.cyclePeriod = 1000;
+        config.cleanupCycles = 2;
+        config.digitCleanupDuration = 100;
+        config.heartbeatPeriod = 3;
+        config.animationStep = 20;
+        config.warmStart = true;
+    }
+
+    private void start(Notify... notifies) {
+        simulation = new DisplaySimulation(config, 1);
+        timeline = simulation.getTimeline();
+        simulation.publish(ImmutableList.copyOf(notifies));
+    }
+
+    private long now() {
+        return simulation.getClock().currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        if (simulation != null)
+            simulation.close();
+    }
+
+    private static long nanos(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private Frame frameAt(long millis) {
+        return timeline.frameAt(nanos(millis), 0);
+    }
+
+    private int levelAt(long millis) {
+        return timeline.levelAt(nanos(millis));
+    }
+
+    private long firstFrame(Frame frame) {
+        for (Event event : timeline.getEvents())
+            if (event.kind == Kind.FRAME && event.getFrame().equals(frame))
+                return event.getMillis();
+        throw new AssertionError("Frame never shown: " + frame);
+    }
+
+    // last time tube went dark before given time
+    private long darkBefore(long millis) {
+        long result = -1;
+        for (Event event : timeline.getEvents())
+            if (event.kind == Kind.LEVEL && event.value == DARK && event.getMillis() < millis)
+                result = event.getMillis();
+        assertTrue("Never dark before " + millis, result >= 0);
+        return result;
+    }
+
+    // first time tube went dark after given time
+    private long darkAfter(long millis) {
+        for (Event event : timeline.getEvents())
+            if (event.kind == Kind.LEVEL && event.value == DARK && event.getMillis() > millis)
+                return event.getMillis();
+        throw new AssertionError("Never dark after " + millis);
+    }
+
+    // first time tube lit up, even partially, after given time
+    private long litAfter(long millis) {
+        for (Event event : timeline.getEvents())
+            if (event.kind == Kind.LEVEL && event.value != DARK && event.getMillis() > millis)
+                return event.getMillis();
+        throw new AssertionError("Never lit after " + millis);
+    }
+
+    private static Frame cleanupDigit(int countdown) {
+        return Frame.of(Color.MAGENTA, Digit.values()[countdown % Digit.values().length], false, false);
+    }
+
+    private void assertStartupAt(long start) {
+        final int digits = config.cleanupCycles * Digit.values().length;
+        for (int i = 0; i < digits; i++) {
+            final long step = start + i * config.digitCleanupDuration;
+            final Frame expected = cleanupDigit(digits - 1 - i);
+            assertEquals("digit " + i, expected, frameAt(step));
+            assertEquals("digit " + i, expected, frameAt(step + config.digitCleanupDuration - 1));
+            assertEquals(LIT, levelAt(step));
+        }
+
+        // hello flash fades in from last digit right after
+        assertTrue(levelAt(start + digits * config.digitCleanupDuration) < LIT);
+    }
+
+    @Test
+    public void startupStepsThroughCleanupDigits() {
+        start();
+        simulation.runFor(5000);
+
+        assertStartupAt(0);
+    }
+
+    @Test
+    public void notifiesAlternateEveryCycle() {
+        start(new Notify("a", A), new Notify("b", B));
+        simulation.runFor(10_000);
+
+        // warm start skips startup
+        for (int cycle = 0; cycle < 10; cycle++) {
+            final Frame expected = cycle % 2 == 0 ? A : B;
+            final long at = cycle * config.cyclePeriod;
+            assertEquals("cycle " + cycle, expected, frameAt(at));
+            assertEquals("cycle " + cycle, expected, frameAt(at + config.cyclePeriod - 1));
+            assertEquals(LIT, levelAt(at));
+        }
+    }
+
+    @Test
+    public void heartbeatFlashesAfterIdleCycles() {
+        start();
+        simulation.runFor(20_000);
+
+        // last animation step holds for one step before waiting starts
+        final long wait = config.animationStep + config.heartbeatPeriod * config.cyclePeriod;
+
+        final long firstFlash = firstFrame(Frame.of(config.heartbeatFlashColor, false, false));
+        final long firstDark = darkBefore(firstFlash);
+        assertEquals(wait, firstFlash - firstDark);
+        assertEquals(firstFlash, litAfter(firstDark));
+
+        final long firstEnd = darkAfter(firstFlash);
+        assertEquals(wait, litAfter(firstEnd) - firstEnd);
+    }
+
+    @Test
+    public void switchOffGoesDarkAndSwitchOnReplaysStartup() {
+        start(new Notify("a", A));
+        simulation.runFor(3000);
+        assertEquals(A, frameAt(2999));
+
+        simulation.setSwitch(false);
+        simulation.runFor(5000);
+
+        assertEquals(3000, firstFrame(Frame.of(config.shutdownFlashColor, false, false)));
+        final long dark = darkBefore(8000);
+        assertTrue(dark > 3000);
+        assertEquals(DARK, levelAt(8000));
+
+        // warm start only covers first switch-on, pushed notify comes back after startup
+        simulation.setSwitch(true);
+        simulation.runFor(5000);
+
+        assertEquals(8000, litAfter(dark));
+        assertStartupAt(8000);
+        assertEquals(A, frameAt(13_000 - 1));
+    }
+
+    @Test
+    public void expiredNotifyLeavesDisplay() {
+        start();
+        simulation.publish(ImmutableList.of(new Notify("a", A, Notify.PRIORITY_NORMAL, now() + 2500)));
+        simulation.runFor(5000);
+
+        assertEquals(A, frameAt(2999));
+        assertEquals(LIT, levelAt(2999));
+
+        // store dropped it at 2500, so next cycle waits dark instead of showing a blank tube
+        assertEquals(DARK, levelAt(3000));
+        assertEquals(DARK, levelAt(5000));
+    }
+}
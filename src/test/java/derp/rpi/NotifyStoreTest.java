@@ -0,0 +1,72 @@
+package derp.rpi;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.StateBuilder.Color;
+import derp.rpi.hardware.StateBuilder.Digit;
+
+public class NotifyStoreTest {
+
+    private static final Frame FRAME = Frame.of(Color.GREEN, Digit.D4, false, false);
+
+    private final VirtualClock clock = new VirtualClock(0);
+    private final NotifyStore store = new NotifyStore(clock);
+
+    private void advance(long millis) {
+        clock.advance(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void refreshReplacesNotifyInPlace() {
+        final Notify first = new Notify("a", FRAME, Notify.PRIORITY_NORMAL, 1000);
+        final Notify notify = new Notify("b", FRAME, Notify.PRIORITY_NORMAL, 1000);
+        store.update("push", ImmutableList.of(first, notify));
+        final List<Notify> snapshot = store.getSnapshot();
+
+        advance(900);
+        final Notify refreshed = store.refresh("push", notify, 2000);
+
+        // published snapshot and notify stay as they were
+        assertEquals(1000, notify.expiresAt);
+        assertSame(notify, snapshot.get(1));
+
+        assertEquals(2000, refreshed.expiresAt);
+        assertEquals(ImmutableList.of(first, refreshed), store.getSnapshot());
+        assertEquals(1000, store.getNextExpiry());
+
+        advance(200);
+        assertTrue(store.expire());
+        assertEquals(ImmutableList.of(refreshed), store.getSnapshot());
+
+        // replaced instance can't be refreshed again
+        assertNull(store.refresh("push", notify, 3000));
+
+        advance(900);
+        assertTrue(store.expire());
+        assertTrue(store.getSnapshot().isEmpty());
+    }
+
+    @Test
+    public void refreshOfNotifyNoLongerStoredFails() {
+        final Notify notify = new Notify("a", FRAME, Notify.PRIORITY_NORMAL, 1000);
+        store.update("push", ImmutableList.of(notify));
+
+        // taken over by another source
+        store.update("other", ImmutableList.of(new Notify("a", FRAME)));
+        assertNull(store.refresh("push", notify, 2000));
+
+        // expired but not swept yet
+        final Notify expiring = new Notify("b", FRAME, Notify.PRIORITY_NORMAL, 1000);
+        store.update("push", ImmutableList.of(expiring));
+        advance(1000);
+        assertNull(store.refresh("push", expiring, 2000));
+    }
+}
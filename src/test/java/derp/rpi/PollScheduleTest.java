@@ -0,0 +1,63 @@
+package derp.rpi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import derp.rpi.PollSchedule.Outcome;
+
+public class PollScheduleTest {
+
+    private static final int PERIOD = 10_000;
+
+    private final PollSchedule schedule = new PollSchedule();
+    private final PollSchedule.Config config = new PollSchedule.Config();
+
+    private void assertDelays(Outcome outcome, int... expected) {
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(outcome + " #" + i, expected[i], schedule.next(outcome, PERIOD, config));
+    }
+
+    @Test
+    public void quietPollsDoubleUpToMax() {
+        assertDelays(Outcome.QUIET, 10_000, 20_000, 40_000, 60_000, 60_000);
+
+        // change polls fast, then first quiet poll is back at period
+        assertDelays(Outcome.CHANGED, 2000, 2000);
+        assertDelays(Outcome.QUIET, 10_000, 20_000);
+    }
+
+    @Test
+    public void failuresDoubleUpToMax() {
+        config.failuresToOpen = 10;
+
+        assertDelays(Outcome.FAILED, 20_000, 40_000, 80_000, 160_000, 300_000, 300_000);
+        assertFalse(schedule.isOpen(config));
+        assertEquals(6, schedule.getFailures());
+
+        // recovery doesn't keep error backoff
+        assertDelays(Outcome.QUIET, 10_000);
+        assertEquals(0, schedule.getFailures());
+    }
+
+    @Test
+    public void circuitOpensAfterConsecutiveFailures() {
+        assertDelays(Outcome.FAILED, 20_000, 40_000, 80_000, 160_000);
+        assertFalse(schedule.isOpen(config));
+
+        assertDelays(Outcome.FAILED, 900_000, 900_000);
+        assertTrue(schedule.isOpen(config));
+
+        assertDelays(Outcome.CHANGED, 2000);
+        assertFalse(schedule.isOpen(config));
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        assertDelays(Outcome.FAILED, 20_000, 40_000, 80_000, 160_000);
+        assertDelays(Outcome.QUIET, 10_000);
+
+        assertDelays(Outcome.FAILED, 20_000);
+        assertFalse(schedule.isOpen(config));
+    }
+}
@@ -0,0 +1,86 @@
+package derp.rpi.gmail;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import derp.rpi.Notify;
+import derp.rpi.hardware.StateBuilder.Color;
+
+public class GmailLabelCountNotifierTest {
+
+    private GmailStub stub;
+    private GmailLabelCountNotifier notifier;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new GmailStub();
+        final GmailTransport.Meter meter = GmailStub.createTransport().createMeter();
+
+        final GmailNotifier.Config config = new GmailNotifier.Config();
+        config.mode = GmailNotifier.Mode.LABEL_COUNTS;
+        config.labelColors = ImmutableMap.of("INBOX", Color.WHITE, "IMPORTANT", Color.RED, "CATEGORY_SOCIAL", Color.BLUE);
+        notifier = new GmailLabelCountNotifier(config, stub.createService(meter), meter);
+
+        stub.setLabelUnread("INBOX", 3);
+        stub.setLabelUnread("IMPORTANT", 12);
+        stub.setLabelUnread("CATEGORY_SOCIAL", 1);
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    private static List<String> ids(List<Notify> notifies) {
+        return notifies.stream().map(n -> n.id).collect(Collectors.toList());
+    }
+
+    @Test
+    public void pollIsOneBatchOfMaskedLabelGets() throws IOException {
+        notifier.query();
+        notifier.query();
+
+        assertEquals(2, stub.requests(GmailStub.BATCH));
+        assertEquals(6, stub.requests(GmailStub.LABELS_GET));
+        assertEquals(0, stub.requests(GmailStub.MESSAGES_LIST));
+
+        for (Map<String, String> query : stub.getBatchedQueries())
+            assertEquals("id,messagesUnread", query.get("fields"));
+    }
+
+    @Test
+    public void countsBecomeNotifiesInLabelOrder() throws IOException {
+        final List<Notify> notifies = notifier.query();
+
+        assertEquals(ImmutableList.of("gmail:CATEGORY_SOCIAL", "gmail:IMPORTANT", "gmail:INBOX"), ids(notifies));
+        assertEquals(GmailNotifier.createNotifyPayload(Color.BLUE, 1), notifies.get(0).payload);
+        assertEquals(GmailNotifier.createNotifyPayload(Color.RED, 12), notifies.get(1).payload);
+        assertEquals(GmailNotifier.createNotifyPayload(Color.WHITE, 3), notifies.get(2).payload);
+
+        stub.setLabelUnread("CATEGORY_SOCIAL", 0);
+        assertEquals(ImmutableList.of("gmail:IMPORTANT", "gmail:INBOX"), ids(notifier.query()));
+    }
+
+    @Test
+    public void missingLabelIsSkipped() throws IOException {
+        notifier.query();
+        stub.removeLabel("IMPORTANT");
+        stub.setLabelUnread("INBOX", 4);
+
+        final List<Notify> notifies = notifier.query();
+
+        assertEquals(ImmutableList.of("gmail:CATEGORY_SOCIAL", "gmail:INBOX"), ids(notifies));
+        assertEquals(GmailNotifier.createNotifyPayload(Color.WHITE, 4), notifies.get(1).payload);
+    }
+}
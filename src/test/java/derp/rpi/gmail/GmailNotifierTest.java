@@ -0,0 +1,180 @@
+package derp.rpi.gmail;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import derp.rpi.Notify;
+import derp.rpi.hardware.Frame;
+import derp.rpi.hardware.StateBuilder.Color;
+
+// Incremental sync against a stub mailbox, requests are counted on the server side
+public class GmailNotifierTest {
+
+    private static final String[] UNREAD = { "INBOX", "UNREAD" };
+    private static final String[] UNREAD_IMPORTANT = { "INBOX", "UNREAD", "IMPORTANT" };
+
+    private GmailStub stub;
+    private GmailTransport transport;
+    private GmailTransport.Meter meter;
+    private final GmailNotifier.Config config = new GmailNotifier.Config();
+    private GmailNotifier notifier;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new GmailStub();
+        transport = GmailStub.createTransport();
+        meter = transport.createMeter();
+
+        config.cacheFile = "";
+        config.labelColors = ImmutableMap.of("INBOX", Color.WHITE, "IMPORTANT", Color.RED);
+        notifier = new GmailNotifier(config, stub.createService(meter), meter);
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    private static Frame count(Color color, int count) {
+        return GmailNotifier.createNotifyPayload(color, count);
+    }
+
+    private static void assertCounts(List<Notify> notifies, Map<String, Frame> expected) {
+        final ImmutableMap.Builder<String, Frame> actual = ImmutableMap.builder();
+        for (Notify notify : notifies)
+            actual.put(notify.id, notify.payload);
+        assertEquals(expected, actual.build());
+    }
+
+    @Test
+    public void incrementalPollFetchesOnlyChanges() throws IOException {
+        stub.setMessage("m1", UNREAD);
+        stub.setMessage("m2", UNREAD_IMPORTANT);
+        stub.setMessage("m3", UNREAD);
+
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:IMPORTANT", count(Color.RED, 1), "gmail:INBOX", count(Color.WHITE, 3)));
+        assertEquals(1, stub.requests(GmailStub.MESSAGES_LIST));
+        assertEquals(3, stub.requests(GmailStub.MESSAGES_GET));
+
+        stub.setMessage("m4", UNREAD_IMPORTANT);
+        stub.deleteMessage("m1");
+
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:IMPORTANT", count(Color.RED, 2), "gmail:INBOX", count(Color.WHITE, 3)));
+        assertEquals(1, stub.requests(GmailStub.HISTORY_LIST));
+        assertEquals(1, stub.requests(GmailStub.MESSAGES_LIST));
+        assertEquals(3, stub.requests(GmailStub.MESSAGES_GET)); // history carries labels of new message
+    }
+
+    @Test
+    public void expiredHistoryFallsBackToFullSync() throws IOException {
+        stub.setMessage("m1", UNREAD);
+        notifier.query();
+
+        stub.setMessage("m2", UNREAD);
+        stub.setMessage("m1", "INBOX");
+        stub.expireHistory();
+
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:INBOX", count(Color.WHITE, 1)));
+        assertEquals(1, stub.requests(GmailStub.HISTORY_LIST));
+        assertEquals(2, stub.requests(GmailStub.MESSAGES_LIST));
+        assertEquals(2, stub.requests(GmailStub.MESSAGES_GET)); // only m2 is new
+
+        // continues incrementally from resynced state
+        stub.setMessage("m3", UNREAD);
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:INBOX", count(Color.WHITE, 2)));
+        assertEquals(2, stub.requests(GmailStub.MESSAGES_LIST));
+    }
+
+    @Test
+    public void labelChangesMoveCounts() throws IOException {
+        stub.setMessage("m1", UNREAD);
+        stub.setMessage("m2", UNREAD);
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:INBOX", count(Color.WHITE, 2)));
+
+        stub.setMessage("m1", UNREAD_IMPORTANT);
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:IMPORTANT", count(Color.RED, 1), "gmail:INBOX", count(Color.WHITE, 2)));
+
+        stub.setMessage("m1", "INBOX", "IMPORTANT"); // read
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:INBOX", count(Color.WHITE, 1)));
+
+        stub.setMessage("m2", "UNREAD"); // archived
+        assertCounts(notifier.query(), ImmutableMap.of());
+    }
+
+    private long quietPollBytes() throws IOException {
+        notifier.query();
+        final long before = meter.getBytesReceived();
+        notifier.query();
+        return meter.getBytesReceived() - before;
+    }
+
+    @Test
+    public void quietPollCostDoesNotGrowWithUnread() throws IOException {
+        for (int i = 0; i < 10; i++)
+            stub.setMessage("m" + i, UNREAD);
+        final long few = quietPollBytes();
+
+        for (int i = 10; i < 1000; i++)
+            stub.setMessage("m" + i, UNREAD);
+        final long many = quietPollBytes();
+
+        assertTrue(few > 0);
+        assertEquals(few, many);
+    }
+
+    @Test
+    public void unreadAboveCacheSizeIsCountedWithoutRefetch() throws IOException {
+        config.maxCachedMessages = 5;
+        notifier = new GmailNotifier(config, stub.createService(meter), meter);
+
+        for (int i = 0; i < 10; i++)
+            stub.setMessage("m" + i, UNREAD);
+
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:INBOX", count(Color.WHITE, 10)));
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:INBOX", count(Color.WHITE, 10)));
+        assertEquals(10, stub.requests(GmailStub.MESSAGES_GET));
+    }
+
+    @Test
+    public void reloadWithInvalidSizeIsRefused() throws IOException {
+        stub.setMessage("m1", UNREAD);
+
+        final GmailNotifier.Config reloaded = new GmailNotifier.Config();
+        reloaded.labelColors = config.labelColors;
+        reloaded.batchSize = 0;
+        try {
+            notifier.reconfigure(reloaded);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected, previous config stays
+        }
+
+        assertCounts(notifier.query(), ImmutableMap.of("gmail:INBOX", count(Color.WHITE, 1)));
+    }
+
+    @Test
+    public void bytesAreChargedToPollingAccount() throws IOException {
+        final GmailTransport.Meter otherMeter = transport.createMeter();
+        final GmailNotifier other = new GmailNotifier(config, stub.createService(otherMeter), otherMeter);
+        stub.setMessage("m1", UNREAD);
+
+        notifier.query();
+        final long polled = meter.getBytesReceived();
+        assertTrue(polled > 0);
+        assertEquals(0, otherMeter.getBytesReceived());
+        assertEquals(polled, transport.getBytesReceived());
+
+        other.query();
+        assertEquals(polled, meter.getBytesReceived());
+        assertEquals(transport.getBytesReceived(), polled + otherMeter.getBytesReceived());
+    }
+}
@@ -0,0 +1,283 @@
+package derp.rpi.gmail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.*;
+import com.google.common.collect.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// In-memory mailbox behind a local HTTP server, answers the calls Gmail sources make including batches.
+// Every change is recorded as one history entry
+class GmailStub implements AutoCloseable {
+
+    public static final String MESSAGES_LIST = "messages.list";
+    public static final String MESSAGES_GET = "messages.get";
+    public static final String HISTORY_LIST = "history.list";
+    public static final String LABELS_GET = "labels.get";
+    public static final String PROFILE = "profile";
+    public static final String BATCH = "batch";
+
+    private static final String SERVICE_PATH = "/gmail/v1/users/me/";
+    private static final String BATCH_PATH = "/batch/gmail/v1";
+    private static final String BOUNDARY = "stub_boundary";
+
+    private static final JsonFactory JSON = JacksonFactory.getDefaultInstance();
+
+    // large enough that history ids keep their length, so responses don't grow with them
+    private static final long FIRST_HISTORY_ID = 1_000_000;
+
+    private final HttpServer server;
+
+    private final Map<String, List<String>> messages = Maps.newLinkedHashMap();
+    private final Map<String, Integer> labelUnread = Maps.newHashMap();
+
+    private final List<History> history = Lists.newArrayList();
+    private long historyId = FIRST_HISTORY_ID;
+    private long expiredBefore; // history below this answers 404
+
+    private final Multiset<String> requests = HashMultiset.create();
+    private final List<Map<String, String>> batchedQueries = Lists.newArrayList();
+
+    public GmailStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public Gmail createService(GmailTransport.Meter meter) {
+        return new Gmail.Builder(meter.getTransport().getTransport(), JSON, meter.initializer(null))
+                .setRootUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/")
+                .setApplicationName("stub")
+                .build();
+    }
+
+    public static GmailTransport createTransport() {
+        return new GmailTransport(new ApacheHttpTransport());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    // adds message or replaces its labels
+    public synchronized void setMessage(String id, String... labels) {
+        final List<String> previous = messages.put(id, ImmutableList.copyOf(labels));
+
+        final Message message = new Message().setId(id).setLabelIds(ImmutableList.copyOf(labels));
+        final History entry = new History();
+        if (previous == null) {
+            entry.setMessagesAdded(ImmutableList.of(new HistoryMessageAdded().setMessage(message)));
+        } else {
+            final Set<String> added = Sets.difference(ImmutableSet.copyOf(labels), ImmutableSet.copyOf(previous));
+            final Set<String> removed = Sets.difference(ImmutableSet.copyOf(previous), ImmutableSet.copyOf(labels));
+            if (!added.isEmpty())
+                entry.setLabelsAdded(ImmutableList.of(new HistoryLabelAdded().setMessage(message).setLabelIds(ImmutableList.copyOf(added))));
+            if (!removed.isEmpty())
+                entry.setLabelsRemoved(ImmutableList.of(new HistoryLabelRemoved().setMessage(message).setLabelIds(ImmutableList.copyOf(removed))));
+        }
+        record(entry);
+    }
+
+    public synchronized void deleteMessage(String id) {
+        messages.remove(id);
+        record(new History().setMessagesDeleted(ImmutableList.of(new HistoryMessageDeleted().setMessage(new Message().setId(id)))));
+    }
+
+    // changes made so far can't be replayed anymore
+    public synchronized void expireHistory() {
+        expiredBefore = historyId;
+    }
+
+    public synchronized void setLabelUnread(String label, int unread) {
+        labelUnread.put(label, unread);
+    }
+
+    public synchronized void removeLabel(String label) {
+        labelUnread.remove(label);
+    }
+
+    public synchronized int requests(String kind) {
+        return requests.count(kind);
+    }
+
+    // query parameters of every request received inside batches
+    public synchronized List<Map<String, String>> getBatchedQueries() {
+        return ImmutableList.copyOf(batchedQueries);
+    }
+
+    private void record(History entry) {
+        entry.setId(BigInteger.valueOf(++historyId));
+        history.add(entry);
+    }
+
+    private synchronized void handle(HttpExchange exchange) throws IOException {
+        final byte[] request = readAll(exchange.getRequestBody());
+        final URI uri = exchange.getRequestURI();
+
+        final Response response;
+        if (uri.getPath().equals(BATCH_PATH)) {
+            requests.add(BATCH);
+            response = batch(new String(request, StandardCharsets.UTF_8));
+        } else {
+            response = call(uri.getPath(), parseQuery(uri.getRawQuery()));
+        }
+
+        final byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", response.contentType);
+        exchange.sendResponseHeaders(response.status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private Response batch(String request) throws IOException {
+        final StringBuilder body = new StringBuilder();
+        for (String line : request.split("\r\n")) {
+            if (!line.startsWith("GET "))
+                continue;
+
+            final URI uri = URI.create(line.substring(4).trim());
+            final Map<String, String> query = parseQuery(uri.getRawQuery());
+            batchedQueries.add(query);
+
+            final Response part = call(uri.getPath(), query);
+            body.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n\r\n")
+                    .append("HTTP/1.1 ").append(part.status).append(part.status == 200 ? " OK" : " Not Found").append("\r\n")
+                    .append("Content-Type: ").append(part.contentType).append("\r\n\r\n")
+                    .append(part.body).append("\r\n");
+        }
+        body.append("--").append(BOUNDARY).append("--\r\n");
+
+        return new Response(200, "multipart/mixed; boundary=" + BOUNDARY, body.toString());
+    }
+
+    private Response call(String path, Map<String, String> query) throws IOException {
+        final String call = path.startsWith(SERVICE_PATH) ? path.substring(SERVICE_PATH.length()) : path;
+
+        if (call.equals("profile")) {
+            requests.add(PROFILE);
+            return json(new Profile().setHistoryId(BigInteger.valueOf(historyId)));
+        }
+
+        if (call.equals("messages")) {
+            requests.add(MESSAGES_LIST);
+            return listMessages(query);
+        }
+
+        if (call.startsWith("messages/")) {
+            requests.add(MESSAGES_GET);
+            final String id = call.substring("messages/".length());
+            final List<String> labels = messages.get(id);
+            return labels != null ? json(new Message().setId(id).setLabelIds(labels)) : notFound();
+        }
+
+        if (call.equals("history")) {
+            requests.add(HISTORY_LIST);
+            return listHistory(new BigInteger(query.get("startHistoryId")).longValue());
+        }
+
+        if (call.startsWith("labels/")) {
+            requests.add(LABELS_GET);
+            final String id = call.substring("labels/".length());
+            final Integer unread = labelUnread.get(id);
+            return unread != null ? json(new Label().setId(id).setMessagesUnread(unread)) : notFound();
+        }
+
+        return notFound();
+    }
+
+    // filters by UNREAD and INBOX like the notifier asks, page token is offset
+    private Response listMessages(Map<String, String> query) throws IOException {
+        final List<Message> matching = Lists.newArrayList();
+        for (Map.Entry<String, List<String>> e : messages.entrySet())
+            if (e.getValue().contains("UNREAD") && e.getValue().contains("INBOX"))
+                matching.add(new Message().setId(e.getKey()));
+
+        final int offset = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+        final int pageSize = query.containsKey("maxResults") ? Integer.parseInt(query.get("maxResults")) : 100;
+        final int end = Math.min(matching.size(), offset + pageSize);
+
+        final ListMessagesResponse response = new ListMessagesResponse();
+        if (end > offset)
+            response.setMessages(matching.subList(offset, end));
+        if (end < matching.size())
+            response.setNextPageToken(Integer.toString(end));
+        return json(response);
+    }
+
+    private Response listHistory(long startHistoryId) throws IOException {
+        if (startHistoryId < expiredBefore)
+            return notFound();
+
+        final List<History> changes = Lists.newArrayList();
+        for (History entry : history)
+            if (entry.getId().longValue() > startHistoryId)
+                changes.add(entry);
+
+        final ListHistoryResponse response = new ListHistoryResponse().setHistoryId(BigInteger.valueOf(historyId));
+        if (!changes.isEmpty())
+            response.setHistory(changes);
+        return json(response);
+    }
+
+    private static Response json(GenericJson content) throws IOException {
+        return new Response(200, "application/json; charset=UTF-8", JSON.toString(content));
+    }
+
+    private static Response notFound() {
+        return new Response(404, "application/json; charset=UTF-8",
+                "{\"error\":{\"code\":404,\"message\":\"Not Found\",\"errors\":[{\"reason\":\"notFound\",\"message\":\"Not Found\"}]}}");
+    }
+
+    // repeated keys keep first value, enough for what is asserted on
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        final Map<String, String> result = Maps.newHashMap();
+        if (rawQuery == null)
+            return result;
+
+        for (String param : rawQuery.split("&")) {
+            final int eq = param.indexOf('=');
+            final String key = URLDecoder.decode(eq >= 0 ? param.substring(0, eq) : param, "UTF-8");
+            final String value = eq >= 0 ? URLDecoder.decode(param.substring(eq + 1), "UTF-8") : "";
+            result.putIfAbsent(key, value);
+        }
+        return result;
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) > 0)
+            result.write(buffer, 0, read);
+        return result.toByteArray();
+    }
+
+    private static class Response {
+        private final int status;
+        private final String contentType;
+        private final String body;
+
+        private Response(int status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+}
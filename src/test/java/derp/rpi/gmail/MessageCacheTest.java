@@ -0,0 +1,74 @@
+package derp.rpi.gmail;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class MessageCacheTest {
+
+    private final LabelCounters counters = new LabelCounters(ImmutableList.of("INBOX", "IMPORTANT"));
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("nixie", ".cache");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private int count(String label) {
+        for (int slot = 0; slot < counters.size(); slot++)
+            if (counters.getLabel(slot).equals(label))
+                return counters.getCount(slot);
+        throw new AssertionError(label);
+    }
+
+    @Test
+    public void unreadMessagesAreKeptAboveSize() {
+        final MessageCache cache = new MessageCache(2, counters);
+        for (int i = 0; i < 5; i++)
+            cache.put("m" + i, ImmutableList.of("INBOX", "UNREAD"));
+
+        assertEquals(5, cache.size());
+        assertTrue(cache.contains("m0"));
+        assertEquals(5, count("INBOX"));
+    }
+
+    @Test
+    public void truncatedFileLeavesCacheEmpty() throws IOException {
+        final MessageCache saved = new MessageCache(100, new LabelCounters(ImmutableList.of("INBOX")));
+        for (int i = 0; i < 50; i++)
+            saved.put("m" + i, ImmutableList.of("INBOX", "IMPORTANT", "UNREAD"));
+        saved.setHistoryId(BigInteger.valueOf(1234));
+        saved.save(file);
+
+        final byte[] data = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length - 10));
+
+        final MessageCache cache = new MessageCache(100, counters);
+        try {
+            cache.load(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(0, cache.size());
+        assertNull(cache.getHistoryId());
+        assertEquals(0, count("INBOX"));
+        assertEquals(0, count("IMPORTANT"));
+    }
+}
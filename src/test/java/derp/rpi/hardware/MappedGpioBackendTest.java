@@ -0,0 +1,137 @@
+package derp.rpi.hardware;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import derp.rpi.hardware.GpioBackend.Line;
+
+// Plain file stands in for /dev/gpiomem, registers are read back from it
+public class MappedGpioBackendTest {
+
+    private static final int GPFSEL1 = 0x04;
+    private static final int GPFSEL2 = 0x08;
+    private static final int GPSET0 = 0x1c;
+    private static final int GPCLR0 = 0x28;
+    private static final int GPLEV0 = 0x34;
+
+    // default pins GPIO_00..GPIO_04 in BCM numbering
+    private static final int DIN = 17;
+    private static final int OE = 18;
+    private static final int STCP = 27;
+    private static final int SHCP = 22;
+    private static final int TOGGLE = 23;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private RandomAccessFile file;
+    private MappedByteBuffer registers;
+    private File device;
+
+    @Before
+    public void setUp() throws IOException {
+        device = folder.newFile("gpiomem");
+        file = new RandomAccessFile(device, "rw");
+        registers = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+        registers.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        file.close();
+    }
+
+    private MappedGpioBackend open() throws IOException {
+        return new MappedGpioBackend(device, new NixieControl.Config());
+    }
+
+    private int function(int bcm) {
+        return (registers.getInt((bcm / 10) * 4) >> ((bcm % 10) * 3)) & 0b111;
+    }
+
+    @Test
+    public void configuresOutputsAndToggleInput() throws IOException {
+        registers.putInt(GPFSEL2, 0b001 << ((TOGGLE % 10) * 3)); // toggle left as output by someone else
+
+        final MappedGpioBackend backend = open();
+        try {
+            assertEquals(0b001, function(DIN));
+            assertEquals(0b001, function(OE));
+            assertEquals(0b001, function(STCP));
+            assertEquals(0b001, function(SHCP));
+            assertEquals(0b000, function(TOGGLE));
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void keepsFunctionOfOtherPins() throws IOException {
+        final int other = 19; // shares GPFSEL1 with DIN and OE
+        registers.putInt(GPFSEL1, 0b100 << ((other % 10) * 3));
+
+        final MappedGpioBackend backend = open();
+        try {
+            assertEquals(0b100, function(other));
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void writesSetAndClearRegisters() throws IOException {
+        try (final MappedGpioBackend backend = open()) {
+            backend.write(Line.DIN, true);
+            assertEquals(1 << DIN, registers.getInt(GPSET0));
+
+            backend.write(Line.STCP, false);
+            assertEquals(1 << STCP, registers.getInt(GPCLR0));
+
+            backend.write(Line.SHCP, true);
+            assertEquals(1 << SHCP, registers.getInt(GPSET0));
+            assertEquals(1 << STCP, registers.getInt(GPCLR0));
+        }
+    }
+
+    @Test
+    public void readsToggleFromLevelRegister() throws IOException {
+        try (final MappedGpioBackend backend = open()) {
+            registers.putInt(GPLEV0, 1 << TOGGLE);
+            assertTrue(backend.readToggle());
+
+            registers.putInt(GPLEV0, ~(1 << TOGGLE));
+            assertFalse(backend.readToggle());
+        }
+    }
+
+    @Test
+    public void pwmLevelHoldsOutputEnableSteady() throws IOException {
+        try (final MappedGpioBackend backend = open()) {
+            backend.writeOutputEnablePwm(0);
+            assertEquals(1 << OE, registers.getInt(GPSET0)); // active LOW
+
+            backend.writeOutputEnablePwm(GpioBackend.PWM_RANGE / 2);
+            assertEquals(1 << OE, registers.getInt(GPCLR0));
+        }
+    }
+
+    @Test
+    public void closeBlanksTube() throws IOException {
+        open().close();
+
+        assertEquals(1 << OE, registers.getInt(GPSET0)); // active LOW
+        assertEquals(1 << SHCP, registers.getInt(GPCLR0)); // last line cleared
+    }
+}